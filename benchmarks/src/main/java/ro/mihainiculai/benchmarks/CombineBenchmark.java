@@ -0,0 +1,44 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import ro.mihainiculai.c03.BmpView;
+import ro.mihainiculai.c03.StripPlanner;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Assembling zoomed strips into the final image, including allocating it (on the heap, or in a mapped
+ * spool file above {@code ZOOM_MAP_THRESHOLD_BYTES}).
+ */
+public class CombineBenchmark extends ImageBenchmark {
+
+    @Param({"8"})
+    public int strips;
+
+    private List<StripPlanner.Strip> plan;
+    private byte[][] zoomedStrips;
+
+    @Setup
+    public void setUp() {
+        loadGeometry();
+        plan = StripPlanner.plan(geometry.sourceHeight(), geometry.targetHeight(), strips);
+        zoomedStrips = new byte[plan.size()][];
+        for (int i = 0; i < plan.size(); i++) {
+            StripPlanner.Strip strip = plan.get(i);
+            zoomedStrips[i] = SyntheticBmp.create(geometry.targetWidth(), strip.targetRowEnd() - strip.targetRowStart());
+        }
+    }
+
+    @Benchmark
+    public int combine() throws IOException {
+        try (BmpView target = BmpView.allocate(geometry.targetWidth(), geometry.targetHeight())) {
+            for (int i = 0; i < plan.size(); i++) {
+                target.putRows(BmpView.wrap(zoomedStrips[i]), plan.get(i).targetRowStart());
+            }
+            return target.length();
+        }
+    }
+}
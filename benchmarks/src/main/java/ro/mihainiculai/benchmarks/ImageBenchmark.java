@@ -0,0 +1,42 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared settings of the benchmarks: every one reports throughput and sampled latency percentiles over
+ * the same image sizes and zoom levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public abstract class ImageBenchmark {
+
+    // 100 MP at 4x would be a 4.8 GB BMP, more than a single array or mapping can hold
+    @Param({"1:0.25", "1:1.0", "1:4.0", "10:0.25", "10:1.0", "10:4.0", "100:0.25", "100:1.0"})
+    public String scenario;
+
+    protected Scenario geometry;
+    protected byte[] sourceBmp;
+
+    protected void loadGeometry() {
+        geometry = Scenario.parse(scenario);
+    }
+
+    protected void loadSource() {
+        loadGeometry();
+        sourceBmp = SyntheticBmp.create(geometry.sourceWidth(), geometry.sourceHeight());
+    }
+}
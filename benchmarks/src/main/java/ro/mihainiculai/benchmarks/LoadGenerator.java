@@ -0,0 +1,452 @@
+package ro.mihainiculai.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads BMPs to {@code /api/upload} at a fixed rate, waits for their completions on {@code /ws} and
+ * reports throughput and latency percentiles, broken down into the stages a client can see:
+ * <ul>
+ *     <li>upload: until C01 has accepted the job (includes publishing it to the broker)</li>
+ *     <li>processing: from then until the completion arrives on the WebSocket (queue, zoom, store)</li>
+ *     <li>download: fetching the result from its download URL</li>
+ * </ul>
+ * The generator is open-loop: jobs are started on schedule whether or not earlier ones have finished, up
+ * to {@code maxInFlight}. Every upload differs in its last pixels, so the C01 result cache never answers.
+ * <p>
+ * Without {@code url=...} an in-process {@link StandInPipeline} is started and used instead of the
+ * docker-compose stack.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar ro.mihainiculai.benchmarks.LoadGenerator [url=http://localhost:8081]
+ * [ws=ws://localhost:8081/ws] [rate=2] [duration=60] [mix=1:6,4:3,12:1] [zoom=2.0] [kernel=area]
+ * [maxInFlight=64] [timeout=120] [download=true] [downloadBase=http://localhost:3001] [standInThreads=2]},
+ * where {@code mix} lists {@code megapixels:weight} pairs and relative download URLs (as C06 hands out) are
+ * resolved against {@code downloadBase}.
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int UNIQUE_TAIL_BYTES = 8;
+
+    private final Config config;
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final Map<String, Job> awaitingCompletion = new ConcurrentHashMap<>();
+    private final Map<Double, byte[]> templates = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final Report report = new Report();
+    private final Random random;
+
+    private WebSocket webSocket;
+    private CompletableFuture<?> webSocketSends = CompletableFuture.completedFuture(null);
+
+    private LoadGenerator(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        StandInPipeline standIn = null;
+        String url = options.get("url");
+        if (url == null) {
+            standIn = StandInPipeline.start(Integer.parseInt(options.getOrDefault("standInThreads", "2")));
+            url = standIn.baseUrl();
+        }
+
+        try {
+            Config config = Config.from(options, url);
+            logger.info("Running {}", config);
+            new LoadGenerator(config).run().print(System.out);
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private Report run() throws InterruptedException {
+        for (SizeClass size : config.mix()) {
+            Scenario geometry = new Scenario(size.megapixels(), config.zoomLevel());
+            templates.put(size.megapixels(), SyntheticBmp.create(geometry.sourceWidth(), geometry.sourceHeight()));
+        }
+        webSocket = httpClient.newWebSocketBuilder()
+                .buildAsync(URI.create(config.webSocketUrl()), new CompletionListener())
+                .join();
+
+        long jobs = Math.round(config.rate() * config.durationSeconds());
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / config.rate());
+        long start = System.nanoTime();
+        for (long i = 0; i < jobs; i++) {
+            long wait = start + i * periodNanos - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            submit(i, pickSize());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.timeoutSeconds());
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        report.timedOut(inFlight.get());
+        report.finish(System.nanoTime() - start, uploadedBytes.get());
+        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+        return report;
+    }
+
+    private SizeClass pickSize() {
+        double total = config.mix().stream().mapToDouble(SizeClass::weight).sum();
+        double pick = random.nextDouble() * total;
+        for (SizeClass size : config.mix()) {
+            pick -= size.weight();
+            if (pick < 0) {
+                return size;
+            }
+        }
+        return config.mix().get(config.mix().size() - 1);
+    }
+
+    private void submit(long sequence, SizeClass size) {
+        if (inFlight.get() >= config.maxInFlight()) {
+            report.count(Outcome.SKIPPED);
+            return;
+        }
+        inFlight.incrementAndGet();
+
+        Job job = new Job(size.label(), System.nanoTime());
+        byte[] template = templates.get(size.megapixels());
+        String boundary = "----zoommate-" + UUID.randomUUID();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(config.baseUrl() + "/api/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(multipartBody(boundary, template, sequence))
+                .build();
+        uploadedBytes.addAndGet(template.length);
+
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> {
+                    job.uploadedNanos = System.nanoTime();
+                    if (error != null) {
+                        logger.warn("Upload failed: {}", error.getMessage());
+                        finish(job, Outcome.FAILED);
+                    } else {
+                        onUploaded(job, response);
+                    }
+                });
+    }
+
+    private void onUploaded(Job job, HttpResponse<String> response) {
+        if (response.statusCode() == 429 || response.statusCode() == 503) {
+            finish(job, Outcome.REJECTED);
+            return;
+        }
+        if (response.statusCode() != 200) {
+            logger.warn("Upload answered {}: {}", response.statusCode(), response.body());
+            finish(job, Outcome.FAILED);
+            return;
+        }
+
+        JsonNode body;
+        try {
+            body = mapper.readTree(response.body());
+        } catch (IOException e) {
+            finish(job, Outcome.FAILED);
+            return;
+        }
+        if (body.hasNonNull("downloadUrl")) {
+            // Answered from the result cache; nothing to wait for
+            job.completedNanos = job.uploadedNanos;
+            finish(job, Outcome.CACHED);
+            return;
+        }
+
+        String jobId = body.path("jobId").asText();
+        awaitingCompletion.put(jobId, job);
+        subscribe(jobId);
+    }
+
+    /**
+     * Sends a subscribe message; WebSocket sends must not overlap, so they are chained.
+     */
+    private synchronized void subscribe(String jobId) {
+        String message = "{\"type\":\"subscribe\",\"jobId\":\"" + jobId + "\"}";
+        webSocketSends = webSocketSends.thenCompose(ignored -> webSocket.sendText(message, true))
+                .exceptionally(error -> {
+                    logger.warn("Could not subscribe to {}: {}", jobId, error.getMessage());
+                    return null;
+                });
+    }
+
+    private void onNotification(String text) {
+        JsonNode notification;
+        try {
+            notification = mapper.readTree(text);
+        } catch (IOException e) {
+            logger.warn("Ignoring malformed notification: {}", text);
+            return;
+        }
+        Job job = awaitingCompletion.remove(notification.path("jobId").asText());
+        if (job == null) {
+            return;
+        }
+        job.completedNanos = System.nanoTime();
+        try {
+            handleCompletion(job, notification);
+        } catch (RuntimeException e) {
+            // A job whose notification could not be handled must still be counted, not left to time out
+            logger.warn("Could not handle the completion of {}: {}", notification.path("jobId").asText(),
+                    e.getMessage());
+            finish(job, Outcome.FAILED);
+        }
+    }
+
+    private void handleCompletion(Job job, JsonNode notification) {
+        if (notification.hasNonNull("error")) {
+            finish(job, Outcome.FAILED);
+            return;
+        }
+        if (!config.download()) {
+            finish(job, Outcome.COMPLETED);
+            return;
+        }
+
+        HttpRequest download = HttpRequest.newBuilder()
+                .uri(config.downloadBase().resolve(notification.path("downloadUrl").asText()))
+                .GET()
+                .build();
+        httpClient.sendAsync(download, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    job.downloadedNanos = System.nanoTime();
+                    finish(job, error == null && response.statusCode() == 200 ? Outcome.COMPLETED : Outcome.FAILED);
+                });
+    }
+
+    private void finish(Job job, Outcome outcome) {
+        report.record(job, outcome);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * The shared template with its last bytes replaced by the sequence number, without copying it.
+     */
+    private HttpRequest.BodyPublisher multipartBody(String boundary, byte[] template, long sequence) {
+        StringBuilder fields = new StringBuilder();
+        appendField(fields, boundary, "zoomLevel", String.valueOf(config.zoomLevel()));
+        if (config.kernel() != null) {
+            appendField(fields, boundary, "kernel", config.kernel());
+        }
+        fields.append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"image\"; filename=\"load.bmp\"\r\n")
+                .append("Content-Type: image/bmp\r\n\r\n");
+
+        byte[] tail = ByteBuffer.allocate(UNIQUE_TAIL_BYTES).putLong(sequence ^ config.seed()).array();
+        return HttpRequest.BodyPublishers.concat(
+                HttpRequest.BodyPublishers.ofString(fields.toString()),
+                HttpRequest.BodyPublishers.ofByteArray(template, 0, template.length - UNIQUE_TAIL_BYTES),
+                HttpRequest.BodyPublishers.ofByteArray(tail),
+                HttpRequest.BodyPublishers.ofString("\r\n--" + boundary + "--\r\n"));
+    }
+
+    private static void appendField(StringBuilder fields, String boundary, String name, String value) {
+        fields.append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n\r\n")
+                .append(value).append("\r\n");
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    private final class CompletionListener implements WebSocket.Listener {
+        private final StringBuilder partial = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                String text = partial.toString();
+                partial.setLength(0);
+                try {
+                    onNotification(text);
+                } catch (RuntimeException e) {
+                    logger.warn("Could not handle notification {}: {}", text, e.getMessage(), e);
+                }
+            }
+            // Keep reading whatever happened to this notification, or every later job times out
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            logger.error("WebSocket failed: {}", error.getMessage(), error);
+        }
+    }
+
+    private static final class Job {
+        private final String size;
+        private final long startNanos;
+        private volatile long uploadedNanos;
+        private volatile long completedNanos;
+        private volatile long downloadedNanos;
+
+        private Job(String size, long startNanos) {
+            this.size = size;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private enum Outcome {
+        COMPLETED,
+        CACHED,
+        FAILED,
+        REJECTED,
+        SKIPPED,
+        TIMED_OUT
+    }
+
+    private record SizeClass(double megapixels, double weight) {
+        String label() {
+            return megapixels + " MP";
+        }
+    }
+
+    private record Config(String baseUrl, String webSocketUrl, double rate, long durationSeconds,
+                          List<SizeClass> mix, double zoomLevel, String kernel, int maxInFlight,
+                          long timeoutSeconds, boolean download, URI downloadBase, long seed) {
+
+        static Config from(Map<String, String> options, String baseUrl) {
+            List<SizeClass> mix = new ArrayList<>();
+            for (String entry : options.getOrDefault("mix", "1:6,4:3,12:1").split(",")) {
+                String[] parts = entry.trim().split(":");
+                mix.add(new SizeClass(Double.parseDouble(parts[0]),
+                        parts.length > 1 ? Double.parseDouble(parts[1]) : 1));
+            }
+            return new Config(
+                    baseUrl,
+                    options.getOrDefault("ws", baseUrl.replaceFirst("^http", "ws") + "/ws"),
+                    Double.parseDouble(options.getOrDefault("rate", "2")),
+                    Long.parseLong(options.getOrDefault("duration", "60")),
+                    mix,
+                    Double.parseDouble(options.getOrDefault("zoom", "2.0")),
+                    options.get("kernel"),
+                    Integer.parseInt(options.getOrDefault("maxInFlight", "64")),
+                    Long.parseLong(options.getOrDefault("timeout", "120")),
+                    Boolean.parseBoolean(options.getOrDefault("download", "true")),
+                    URI.create(options.getOrDefault("downloadBase", "http://localhost:3001")),
+                    Long.parseLong(options.getOrDefault("seed", "42")));
+        }
+    }
+
+    /**
+     * Collects latencies per stage and outcome counts, and prints them with nearest-rank percentiles.
+     */
+    private static final class Report {
+        private final Map<Outcome, Integer> outcomes = new LinkedHashMap<>();
+        private final Map<String, List<Long>> stages = new LinkedHashMap<>();
+        private final Map<String, List<Long>> totalsBySize = new LinkedHashMap<>();
+        private long wallNanos;
+        private long uploadedBytes;
+
+        Report() {
+            for (Outcome outcome : Outcome.values()) {
+                outcomes.put(outcome, 0);
+            }
+            for (String stage : List.of("upload", "processing", "download", "total")) {
+                stages.put(stage, new ArrayList<>());
+            }
+        }
+
+        synchronized void count(Outcome outcome) {
+            outcomes.merge(outcome, 1, Integer::sum);
+        }
+
+        synchronized void record(Job job, Outcome outcome) {
+            count(outcome);
+            if (job.uploadedNanos > 0) {
+                stages.get("upload").add(job.uploadedNanos - job.startNanos);
+            }
+            if (outcome != Outcome.COMPLETED) {
+                return;
+            }
+
+            long end = job.downloadedNanos > 0 ? job.downloadedNanos : job.completedNanos;
+            stages.get("processing").add(job.completedNanos - job.uploadedNanos);
+            if (job.downloadedNanos > 0) {
+                stages.get("download").add(job.downloadedNanos - job.completedNanos);
+            }
+            stages.get("total").add(end - job.startNanos);
+            totalsBySize.computeIfAbsent(job.size, size -> new ArrayList<>()).add(end - job.startNanos);
+        }
+
+        synchronized void timedOut(int jobs) {
+            outcomes.merge(Outcome.TIMED_OUT, jobs, Integer::sum);
+        }
+
+        synchronized void finish(long wallNanos, long uploadedBytes) {
+            this.wallNanos = wallNanos;
+            this.uploadedBytes = uploadedBytes;
+        }
+
+        synchronized void print(PrintStream out) {
+            double seconds = wallNanos / 1e9;
+            out.println("Outcomes: " + outcomes);
+            out.printf("Throughput: %.2f jobs/s completed, %.1f MB/s uploaded over %.1f s%n",
+                    outcomes.get(Outcome.COMPLETED) / seconds, uploadedBytes / (1024.0 * 1024) / seconds, seconds);
+            out.printf("%n%-14s %8s %10s %10s %10s %10s%n", "stage", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+            stages.forEach((stage, samples) -> printRow(out, stage, samples));
+            out.printf("%n%-14s %8s %10s %10s %10s %10s%n", "total by size", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+            totalsBySize.forEach((size, samples) -> printRow(out, size, samples));
+        }
+
+        private static void printRow(PrintStream out, String name, List<Long> samples) {
+            if (samples.isEmpty()) {
+                out.printf("%-14s %8d%n", name, 0);
+                return;
+            }
+            long[] sorted = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+            out.printf("%-14s %8d %10.1f %10.1f %10.1f %10.1f%n", name, sorted.length,
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+        }
+    }
+}
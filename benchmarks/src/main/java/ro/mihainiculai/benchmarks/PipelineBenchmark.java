@@ -0,0 +1,80 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import ro.mihainiculai.c03.BmpView;
+import ro.mihainiculai.c03.StripPlanner;
+import ro.mihainiculai.rmi.BmpStrip;
+import ro.mihainiculai.rmi.StripRequest;
+import ro.mihainiculai.rmi.ZoomImageImplementation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The MDB's path for one job, in process: split, marshal each strip both ways as RMI would, zoom it and
+ * combine the results, with the strips running concurrently as they do against several zoom servers.
+ */
+public class PipelineBenchmark extends ImageBenchmark {
+
+    @Param({"8"})
+    public int strips;
+
+    @Param({"4"})
+    public int threads;
+
+    @Param({"area"})
+    public String kernel;
+
+    private ZoomImageImplementation zoomServer;
+    private ExecutorService executor;
+    private List<StripPlanner.Strip> plan;
+
+    @Setup
+    public void setUp() throws RemoteException {
+        loadSource();
+        zoomServer = new ZoomImageImplementation();
+        executor = Executors.newFixedThreadPool(threads);
+        plan = StripPlanner.plan(geometry.sourceHeight(), geometry.targetHeight(), strips);
+    }
+
+    @TearDown
+    public void tearDown() throws NoSuchObjectException {
+        executor.shutdownNow();
+        UnicastRemoteObject.unexportObject(zoomServer, true);
+    }
+
+    @Benchmark
+    public int pipeline() throws IOException {
+        BmpView source = BmpView.wrap(sourceBmp);
+        try (BmpView target = BmpView.allocate(geometry.targetWidth(), geometry.targetHeight())) {
+            CompletableFuture.allOf(plan.stream()
+                    .map(strip -> CompletableFuture.runAsync(() -> zoomStrip(source, target, strip), executor))
+                    .toArray(CompletableFuture[]::new)).join();
+            return target.length();
+        }
+    }
+
+    private void zoomStrip(BmpView source, BmpView target, StripPlanner.Strip strip) {
+        StripRequest request = new StripRequest(kernel, source.height(), strip.sourceRowStart(),
+                target.width(), target.height(), strip.targetRowStart(), strip.targetRowEnd());
+        int rows = strip.sourceRowEnd() - strip.sourceRowStart();
+        BmpStrip sent = Marshalling.roundTrip(
+                new BmpStrip(source.stripHeader(rows), source.rows(strip.sourceRowStart(), strip.sourceRowEnd())));
+        try {
+            byte[] zoomed = Marshalling.roundTrip(zoomServer.zoomStrip(sent, request));
+            target.putRows(BmpView.wrap(zoomed), strip.targetRowStart());
+        } catch (RemoteException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
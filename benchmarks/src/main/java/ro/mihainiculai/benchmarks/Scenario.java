@@ -0,0 +1,33 @@
+package ro.mihainiculai.benchmarks;
+
+/**
+ * An image size and zoom level, written {@code megapixels:zoomLevel} in the {@code scenario} parameter,
+ * e.g. {@code 10:0.25}. Source images are 4:3.
+ */
+record Scenario(double megapixels, double zoomLevel) {
+
+    static Scenario parse(String value) {
+        String[] parts = value.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected megapixels:zoomLevel, got " + value);
+        }
+        return new Scenario(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+    }
+
+    int sourceWidth() {
+        return Math.max(1, (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 4 / 3)));
+    }
+
+    int sourceHeight() {
+        return Math.max(1, (int) Math.round(sourceWidth() * 3.0 / 4));
+    }
+
+    // Same rounding as the MDB and the zoom server
+    int targetWidth() {
+        return Math.max(1, (int) Math.round(sourceWidth() * zoomLevel));
+    }
+
+    int targetHeight() {
+        return Math.max(1, (int) Math.round(sourceHeight() * zoomLevel));
+    }
+}
@@ -0,0 +1,58 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.Blackhole;
+import ro.mihainiculai.c03.BmpView;
+import ro.mihainiculai.c03.StripPlanner;
+import ro.mihainiculai.rmi.BmpStrip;
+
+import java.util.List;
+
+/**
+ * Cutting a source image into the strips sent to the zoom servers.
+ */
+public class SplitBenchmark extends ImageBenchmark {
+
+    @Param({"8"})
+    public int strips;
+
+    private BmpView source;
+    private List<StripPlanner.Strip> plan;
+
+    @Setup
+    public void setUp() {
+        loadSource();
+        source = BmpView.wrap(sourceBmp);
+        plan = StripPlanner.plan(geometry.sourceHeight(), geometry.targetHeight(), strips);
+    }
+
+    /**
+     * Planning the strips and building their views and headers, which is all the MDB does before the
+     * strips are handed to RMI.
+     */
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        for (StripPlanner.Strip strip : StripPlanner.plan(geometry.sourceHeight(), geometry.targetHeight(), strips)) {
+            blackhole.consume(toBmpStrip(strip));
+        }
+    }
+
+    /**
+     * {@link #split} followed by serializing every strip, which is where the pixel data is copied.
+     */
+    @Benchmark
+    public long splitAndMarshal() {
+        long bytes = 0;
+        for (StripPlanner.Strip strip : plan) {
+            bytes += Marshalling.serializedSize(toBmpStrip(strip));
+        }
+        return bytes;
+    }
+
+    private BmpStrip toBmpStrip(StripPlanner.Strip strip) {
+        int rows = strip.sourceRowEnd() - strip.sourceRowStart();
+        return new BmpStrip(source.stripHeader(rows), source.rows(strip.sourceRowStart(), strip.sourceRowEnd()));
+    }
+}
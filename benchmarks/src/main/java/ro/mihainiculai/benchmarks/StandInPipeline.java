@@ -0,0 +1,173 @@
+package ro.mihainiculai.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.UploadedFile;
+import io.javalin.websocket.WsContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ro.mihainiculai.rmi.ZoomImageImplementation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for C01 through C06 in one process, with the same HTTP and WebSocket contract: uploads are
+ * accepted on {@code /api/upload}, zoomed by the real {@link ZoomImageImplementation} on a small pool,
+ * announced to {@code /ws} subscribers and served from memory on {@code /api/image/{jobId}}. There is no
+ * broker, MDB or database in between, so it measures the load generator and the zoom code, not the
+ * deployment.
+ */
+final class StandInPipeline implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(StandInPipeline.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Results not downloaded are dropped after a while, so a long run without downloads stays bounded
+    private static final int KEPT_RESULTS = 16;
+
+    private final ZoomImageImplementation zoomServer;
+    private final ExecutorService workers;
+    private final Javalin app;
+    private final Map<String, WsContext> subscribers = new HashMap<>();
+    private final Map<String, String> notifications = new HashMap<>();
+    private final Map<String, byte[]> results = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > KEPT_RESULTS;
+        }
+    };
+
+    private StandInPipeline(int threads) throws RemoteException {
+        zoomServer = new ZoomImageImplementation();
+        workers = Executors.newFixedThreadPool(threads);
+        app = Javalin.create();
+        app.post("/api/upload", this::handleUpload);
+        app.get("/api/image/{jobId}", this::handleDownload);
+        app.ws("/ws", ws -> ws.onMessage(ctx -> handleSubscribe(ctx, ctx.message())));
+    }
+
+    /**
+     * Starts the stand-in on a free port with {@code threads} jobs zoomed at a time.
+     */
+    static StandInPipeline start(int threads) throws RemoteException {
+        StandInPipeline pipeline = new StandInPipeline(threads);
+        pipeline.app.start(0);
+        logger.info("Stand-in pipeline listening on {}", pipeline.baseUrl());
+        return pipeline;
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + app.port();
+    }
+
+    private void handleUpload(Context ctx) throws IOException {
+        UploadedFile image = ctx.uploadedFile("image");
+        String zoomLevel = ctx.formParam("zoomLevel");
+        if (image == null || zoomLevel == null) {
+            ctx.status(400).json(Map.of("message", "image and zoomLevel are required."));
+            return;
+        }
+
+        byte[] bmp;
+        try (InputStream content = image.content()) {
+            bmp = content.readAllBytes();
+        }
+        String jobId = "job-" + UUID.randomUUID();
+        double zoom = Double.parseDouble(zoomLevel);
+        String kernel = ctx.formParam("kernel");
+        workers.execute(() -> process(jobId, bmp, zoom, kernel));
+
+        ctx.json(Map.of("jobId", jobId, "message", "Image uploaded successfully."));
+    }
+
+    private void process(String jobId, byte[] bmp, double zoomLevel, String kernel) {
+        Map<String, String> notification = new HashMap<>();
+        notification.put("jobId", jobId);
+        try {
+            byte[] zoomed = zoomServer.zoomImage(bmp, zoomLevel, kernel);
+            synchronized (results) {
+                results.put(jobId, zoomed);
+            }
+            notification.put("downloadUrl", baseUrl() + "/api/image/" + jobId);
+        } catch (RemoteException | RuntimeException e) {
+            logger.warn("Stand-in job {} failed: {}", jobId, e.getMessage());
+            notification.put("error", String.valueOf(e.getMessage()));
+        }
+
+        try {
+            publish(jobId, mapper.writeValueAsString(notification));
+        } catch (JsonProcessingException e) {
+            logger.error("Could not serialize notification for {}", jobId, e);
+        }
+    }
+
+    private void handleDownload(Context ctx) {
+        byte[] result;
+        synchronized (results) {
+            result = results.remove(ctx.pathParam("jobId"));
+        }
+        if (result == null) {
+            ctx.status(404).json(Map.of("message", "Image not found."));
+            return;
+        }
+        ctx.contentType("image/bmp").result(result);
+    }
+
+    private void handleSubscribe(WsContext ctx, String message) throws JsonProcessingException {
+        JsonNode request = mapper.readTree(message);
+        String jobId = request.path("jobId").asText(null);
+        if (!"subscribe".equals(request.path("type").asText()) || jobId == null) {
+            return;
+        }
+
+        String notification;
+        synchronized (this) {
+            notification = notifications.remove(jobId);
+            if (notification == null) {
+                subscribers.put(jobId, ctx);
+                return;
+            }
+        }
+        send(ctx, notification);
+    }
+
+    /**
+     * Notifies the job's subscriber, or keeps the notification until the job is subscribed to.
+     */
+    private void publish(String jobId, String notification) {
+        WsContext subscriber;
+        synchronized (this) {
+            subscriber = subscribers.remove(jobId);
+            if (subscriber == null) {
+                notifications.put(jobId, notification);
+                return;
+            }
+        }
+        send(subscriber, notification);
+    }
+
+    private static void send(WsContext ctx, String message) {
+        // Blocking sends on one session must not overlap
+        synchronized (ctx.session) {
+            ctx.send(message);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        app.stop();
+        workers.shutdownNow();
+        UnicastRemoteObject.unexportObject(zoomServer, true);
+    }
+}
@@ -0,0 +1,30 @@
+package ro.mihainiculai.benchmarks;
+
+import ro.mihainiculai.rmi.BmpImage;
+
+/**
+ * Generates 24-bit bottom-up BMPs with smooth gradients and some noise, so that the resampler sees
+ * photo-like data rather than a constant colour.
+ */
+final class SyntheticBmp {
+
+    private SyntheticBmp() {
+    }
+
+    static byte[] create(int width, int height) {
+        BmpImage image = BmpImage.create(width, height);
+        byte[] data = image.data();
+        long seed = 42;
+        for (int y = 0; y < height; y++) {
+            int offset = image.rowOffset(y);
+            for (int x = 0; x < width; x++, offset += 3) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) (seed >>> 60);
+                data[offset] = (byte) (x * 255 / width + noise);
+                data[offset + 1] = (byte) (y * 255 / height + noise);
+                data[offset + 2] = (byte) ((x + y) * 127 / (width + height) + noise);
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,90 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ro.mihainiculai.rmi.BmpImage;
+import ro.mihainiculai.rmi.BmpResampler;
+import ro.mihainiculai.rmi.PixelEncoding;
+import ro.mihainiculai.rmi.ResampleKernel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The pixel encodings strips travel in between C03 and the zoom servers, on the source rows sent out
+ * ({@code rows=source}) or the zoomed rows sent back ({@code rows=zoomed}).
+ * <p>
+ * {@link #encode} counts the raw and the encoded bytes it handles, so its throughput result also shows
+ * {@code rawBytes} and {@code wireBytes} per millisecond: their ratio is what an encoding saves, and
+ * {@code rawBytes} is the rate a link has to beat for sending raw rows to be as fast as encoding them
+ * (1 Gbit/s is 125,000 bytes per millisecond).
+ */
+public class TransportBenchmark extends ImageBenchmark {
+
+    @Param({"identity", "delta-deflate"})
+    public String encoding;
+
+    @Param({"source", "zoomed"})
+    public String rows;
+
+    private PixelEncoding pixelEncoding;
+    private ByteBuffer pixels;
+    private int stride;
+    private byte[] encoded;
+    private ByteBuffer decoded;
+
+    @Setup
+    public void setUp() {
+        loadSource();
+        pixelEncoding = PixelEncoding.parse(encoding);
+
+        BmpImage image = BmpImage.wrap(sourceBmp);
+        if (rows.equals("zoomed")) {
+            BmpImage zoomed = BmpImage.create(geometry.targetWidth(), geometry.targetHeight());
+            BmpResampler.resample(image, zoomed, ResampleKernel.AREA);
+            image = zoomed;
+        }
+        byte[] data = image.data();
+        pixels = ByteBuffer.wrap(data, image.pixelOffset(), data.length - image.pixelOffset()).slice();
+        stride = image.stride();
+        encoded = pixelEncoding.encode(pixels, stride);
+        decoded = ByteBuffer.allocate(pixels.remaining());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public byte[] encode(Bytes bytes) {
+        byte[] result = pixelEncoding.encode(pixels, stride);
+        bytes.rawBytes += pixels.remaining();
+        bytes.wireBytes += result.length;
+        return result;
+    }
+
+    @Benchmark
+    public ByteBuffer decode() {
+        pixelEncoding.decode(encoded, decoded);
+        return decoded;
+    }
+
+    /**
+     * Bytes before and after encoding, reported as rates next to the throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+}
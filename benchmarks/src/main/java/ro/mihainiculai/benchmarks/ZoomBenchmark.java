@@ -0,0 +1,38 @@
+package ro.mihainiculai.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import ro.mihainiculai.rmi.ZoomImageImplementation;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * A whole image through {@link ZoomImageImplementation#zoomImage}, called in process.
+ */
+public class ZoomBenchmark extends ImageBenchmark {
+
+    @Param({"area"})
+    public String kernel;
+
+    private ZoomImageImplementation zoomServer;
+
+    @Setup
+    public void setUp() throws RemoteException {
+        loadSource();
+        zoomServer = new ZoomImageImplementation();
+    }
+
+    @TearDown
+    public void tearDown() throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(zoomServer, true);
+    }
+
+    @Benchmark
+    public byte[] zoomImage() throws RemoteException {
+        return zoomServer.zoomImage(sourceBmp, geometry.zoomLevel(), kernel);
+    }
+}
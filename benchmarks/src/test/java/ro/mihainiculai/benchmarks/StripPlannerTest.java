@@ -0,0 +1,171 @@
+package ro.mihainiculai.benchmarks;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import ro.mihainiculai.c03.BmpView;
+import ro.mihainiculai.c03.StripPlanner;
+import ro.mihainiculai.rmi.BmpStrip;
+import ro.mihainiculai.rmi.PixelEncoding;
+import ro.mihainiculai.rmi.ResampleKernel;
+import ro.mihainiculai.rmi.StripRequest;
+import ro.mihainiculai.rmi.ZoomImageImplementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the planner against the zoom server it plans for: strips zoomed on their own from just the
+ * source rows the planner gave them, halo included, must put back together into exactly the image a
+ * single zoom of the whole source gives.
+ */
+class StripPlannerTest {
+    private static final int WIDTH = 211;
+    private static final int HEIGHT = 173;
+    private static final double[] ZOOM_LEVELS = {0.3, 0.5, 0.77, 1.0, 1.6, 3.0};
+    private static final int[] STRIP_COUNTS = {2, 7, 40};
+
+    private static ZoomImageImplementation zoomServer;
+    private static byte[] sourceBmp;
+
+    @BeforeAll
+    static void startServer() throws RemoteException {
+        zoomServer = new ZoomImageImplementation();
+        sourceBmp = SyntheticBmp.create(WIDTH, HEIGHT);
+    }
+
+    @AfterAll
+    static void stopServer() throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(zoomServer, true);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ResampleKernel.class)
+    void stripsMatchWholeImageZoom(ResampleKernel kernel) throws IOException {
+        String kernelName = kernel.name().toLowerCase(Locale.ROOT);
+        BmpView source = BmpView.wrap(sourceBmp);
+        for (double zoomLevel : ZOOM_LEVELS) {
+            BmpView whole = BmpView.wrap(zoomServer.zoomImage(sourceBmp, zoomLevel, kernelName));
+            for (int stripCount : STRIP_COUNTS) {
+                try (BmpView combined = BmpView.allocate(whole.width(), whole.height())) {
+                    for (StripPlanner.Strip strip : StripPlanner.plan(HEIGHT, whole.height(), stripCount)) {
+                        StripRequest request = new StripRequest(kernelName, HEIGHT, strip.sourceRowStart(),
+                                whole.width(), whole.height(), strip.targetRowStart(), strip.targetRowEnd());
+                        int rows = strip.sourceRowEnd() - strip.sourceRowStart();
+                        BmpStrip sent = Marshalling.roundTrip(new BmpStrip(source.stripHeader(rows),
+                                source.rows(strip.sourceRowStart(), strip.sourceRowEnd())));
+                        combined.putRows(BmpView.wrap(zoomServer.zoomStrip(sent, request)), strip.targetRowStart());
+                    }
+                    assertArrayEquals(pixels(whole), pixels(combined),
+                            kernel + " at zoom " + zoomLevel + " in " + stripCount + " strips");
+                }
+            }
+        }
+    }
+
+    @Test
+    void levelStripsCoverEveryOutputRowOnce() {
+        int[] targetHeights = targetHeights();
+        for (int stripCount : STRIP_COUNTS) {
+            int[][] covered = new int[targetHeights.length][];
+            for (int level = 0; level < targetHeights.length; level++) {
+                covered[level] = new int[targetHeights[level]];
+            }
+
+            for (StripPlanner.Batch batch : StripPlanner.planLevels(HEIGHT, targetHeights, stripCount)) {
+                for (StripPlanner.LevelStrip output : batch.outputs()) {
+                    StripPlanner.Strip strip = output.strip();
+                    assertTrue(batch.sourceRowStart() <= strip.sourceRowStart()
+                                    && strip.sourceRowEnd() <= batch.sourceRowEnd(),
+                            "Batch " + batch + " lacks source rows of " + strip);
+                    for (int row = strip.targetRowStart(); row < strip.targetRowEnd(); row++) {
+                        covered[output.level()][row]++;
+                    }
+                }
+            }
+
+            for (int level = 0; level < targetHeights.length; level++) {
+                for (int row = 0; row < targetHeights[level]; row++) {
+                    assertEquals(1, covered[level][row], "Row " + row + " of height " + targetHeights[level]
+                            + " in " + stripCount + " strips");
+                }
+            }
+        }
+    }
+
+    /**
+     * Zooms every level of each batch from the batch's source rows alone, so a strip whose halo reaches past
+     * them fails the server's coverage check.
+     */
+    @ParameterizedTest
+    @EnumSource(ResampleKernel.class)
+    void levelBatchesMatchWholeImageZooms(ResampleKernel kernel) throws IOException {
+        String kernelName = kernel.name().toLowerCase(Locale.ROOT);
+        BmpView source = BmpView.wrap(sourceBmp);
+        BmpView[] whole = new BmpView[ZOOM_LEVELS.length];
+        for (int level = 0; level < ZOOM_LEVELS.length; level++) {
+            whole[level] = BmpView.wrap(zoomServer.zoomImage(sourceBmp, ZOOM_LEVELS[level], kernelName));
+        }
+
+        for (int stripCount : STRIP_COUNTS) {
+            List<BmpView> combined = new ArrayList<>();
+            try {
+                for (BmpView level : whole) {
+                    combined.add(BmpView.allocate(level.width(), level.height()));
+                }
+                for (StripPlanner.Batch batch : StripPlanner.planLevels(HEIGHT, targetHeights(), stripCount)) {
+                    StripRequest[] requests = new StripRequest[batch.outputs().size()];
+                    for (int i = 0; i < requests.length; i++) {
+                        StripPlanner.LevelStrip output = batch.outputs().get(i);
+                        BmpView target = combined.get(output.level());
+                        requests[i] = new StripRequest(kernelName, HEIGHT, batch.sourceRowStart(), target.width(),
+                                target.height(), output.strip().targetRowStart(), output.strip().targetRowEnd());
+                    }
+                    int rows = batch.sourceRowEnd() - batch.sourceRowStart();
+                    BmpStrip sent = Marshalling.roundTrip(new BmpStrip(source.stripHeader(rows),
+                            source.rows(batch.sourceRowStart(), batch.sourceRowEnd())));
+                    byte[][] zoomed = zoomServer.zoomStrips(sent, requests, PixelEncoding.IDENTITY.id());
+                    for (int i = 0; i < requests.length; i++) {
+                        StripPlanner.Strip strip = batch.outputs().get(i).strip();
+                        BmpView target = combined.get(batch.outputs().get(i).level());
+                        PixelEncoding.IDENTITY.decode(zoomed[i],
+                                target.rows(strip.targetRowStart(), strip.targetRowEnd()));
+                    }
+                }
+                for (int level = 0; level < ZOOM_LEVELS.length; level++) {
+                    assertArrayEquals(pixels(whole[level]), pixels(combined.get(level)),
+                            kernel + " at zoom " + ZOOM_LEVELS[level] + " in " + stripCount + " batches");
+                }
+            } finally {
+                combined.forEach(BmpView::close);
+            }
+        }
+    }
+
+    private static int[] targetHeights() {
+        int[] heights = new int[ZOOM_LEVELS.length];
+        for (int level = 0; level < ZOOM_LEVELS.length; level++) {
+            heights[level] = Math.max(1, (int) Math.round(HEIGHT * ZOOM_LEVELS[level]));
+        }
+        return heights;
+    }
+
+    static byte[] pixels(BmpView image) {
+        ByteBuffer rows = image.rows(0, image.height());
+        byte[] bytes = new byte[rows.remaining()];
+        rows.get(bytes);
+        return bytes;
+    }
+}
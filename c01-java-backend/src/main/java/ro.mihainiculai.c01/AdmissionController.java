@@ -0,0 +1,122 @@
+package ro.mihainiculai.c01;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how much work C01 hands to the pipeline at once. A job is admitted while both the number of
+ * jobs and the number of image bytes in flight stay under their limits, and it is released when C03
+ * reports it done. Jobs whose completion never arrives (e.g. the MDB failed) are released after
+ * {@code ZOOM_JOB_EXPIRY_SECONDS}.
+ */
+public class AdmissionController {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    private final int maxJobs;
+    private final long maxBytes;
+    private final long expiryNanos;
+    private final Map<String, Admission> inFlight = new HashMap<>();
+    // Results still to come for jobs that produce more than one
+    private final Map<String, Integer> pendingOutputs = new HashMap<>();
+    private long inFlightBytes;
+
+    public AdmissionController(int maxJobs, long maxBytes, long expirySeconds) {
+        this.maxJobs = maxJobs;
+        this.maxBytes = maxBytes;
+        this.expiryNanos = TimeUnit.SECONDS.toNanos(expirySeconds);
+    }
+
+    public static AdmissionController fromEnvironment() {
+        return new AdmissionController(
+                Integer.parseInt(System.getenv().getOrDefault("ZOOM_MAX_INFLIGHT_JOBS", "32")),
+                Long.parseLong(System.getenv().getOrDefault("ZOOM_MAX_INFLIGHT_BYTES", String.valueOf(2L * 1024 * 1024 * 1024))),
+                Long.parseLong(System.getenv().getOrDefault("ZOOM_JOB_EXPIRY_SECONDS", "600")));
+    }
+
+    /**
+     * Admits a job of {@code bytes} bytes if there is room for it. A job larger than the whole byte budget is
+     * admitted only when nothing else is in flight, so it can still run, just not alongside others.
+     * <p>
+     * The job reports {@code outputs} results, one completion each, and stays in flight until
+     * {@link #outputDone} has been called for all of them.
+     */
+    public synchronized Decision tryAdmit(String jobId, long bytes, int outputs) {
+        expireStale();
+
+        if (inFlight.size() >= maxJobs) {
+            return Decision.TOO_MANY_JOBS;
+        }
+        if (inFlightBytes + bytes > maxBytes && !inFlight.isEmpty()) {
+            return Decision.TOO_MANY_BYTES;
+        }
+
+        inFlight.put(jobId, new Admission(bytes, System.nanoTime()));
+        inFlightBytes += bytes;
+        if (outputs > 1) {
+            pendingOutputs.put(jobId, outputs);
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Counts one completed result of a job.
+     *
+     * @return whether it was the job's last result (or the job is unknown), so that it can be released
+     */
+    public synchronized boolean outputDone(String jobId) {
+        Integer remaining = pendingOutputs.computeIfPresent(jobId, (id, outputs) -> outputs > 1 ? outputs - 1 : null);
+        return remaining == null;
+    }
+
+    /**
+     * Releases a job's share of the limits; unknown or already released jobs are ignored.
+     *
+     * @return how long the job was in flight in nanoseconds, or -1 if it was not
+     */
+    public synchronized long release(String jobId) {
+        pendingOutputs.remove(jobId);
+        Admission admission = inFlight.remove(jobId);
+        if (admission == null) {
+            return -1;
+        }
+        inFlightBytes -= admission.bytes();
+        return System.nanoTime() - admission.admittedNanos();
+    }
+
+    public synchronized int inFlightJobs() {
+        return inFlight.size();
+    }
+
+    public synchronized long inFlightBytes() {
+        return inFlightBytes;
+    }
+
+    private void expireStale() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Admission>> iterator = inFlight.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Admission> entry = iterator.next();
+            if (now - entry.getValue().admittedNanos() > expiryNanos) {
+                logger.warn("No completion for job {} after {}s, releasing it",
+                        entry.getKey(), TimeUnit.NANOSECONDS.toSeconds(expiryNanos));
+                inFlightBytes -= entry.getValue().bytes();
+                pendingOutputs.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    public enum Decision {
+        ADMITTED,
+        TOO_MANY_JOBS,
+        TOO_MANY_BYTES
+    }
+
+    private record Admission(long bytes, long admittedNanos) {
+    }
+}
@@ -1,40 +1,93 @@
 package ro.mihainiculai.c01;
 
 import jakarta.jms.*;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import java.util.Base64;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+/**
+ * Publishes zoom jobs over one shared connection. JMS sessions are single-threaded, so every send
+ * borrows a session and producer from a small pool and hands it back afterwards; request threads never
+ * share a session. The broker URL normally uses the failover transport, which reconnects after a
+ * broker restart and restores the pooled sessions without them having to be recreated.
+ */
 public class JmsMessageProducer implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(JmsMessageProducer.class);
     private static final String INITIAL_CONTEXT_FACTORY = "org.apache.activemq.jndi.ActiveMQInitialContextFactory";
     private static final String CONNECTION_FACTORY_JNDI = "ConnectionFactory";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final int POOL_SIZE = Integer.parseInt(
+            System.getenv().getOrDefault("JMS_PRODUCER_POOL_SIZE", "8"));
+    private static final long BORROW_TIMEOUT_MS = Long.parseLong(
+            System.getenv().getOrDefault("JMS_PRODUCER_BORROW_TIMEOUT_MS", "5000"));
+    // Return as soon as the message is on the wire and learn about the broker's answer in a callback
+    private static final boolean ASYNC_SEND = Boolean.parseBoolean(
+            System.getenv().getOrDefault("JMS_ASYNC_SEND", "true"));
+
+    // Small jobs overtake large ones waiting in the queue
+    private static final long SMALL_JOB_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("JMS_SMALL_JOB_BYTES", String.valueOf(4L * 1024 * 1024)));
+    private static final long LARGE_JOB_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("JMS_LARGE_JOB_BYTES", String.valueOf(128L * 1024 * 1024)));
+    private static final int SMALL_JOB_PRIORITY = 7;
+    private static final int LARGE_JOB_PRIORITY = 2;
+
+    public static final String JOB_ID_PROPERTY = "jobId";
+    public static final String ZOOM_LEVEL_PROPERTY = "zoomLevel";
+    public static final String ZOOM_LEVELS_PROPERTY = "zoomLevels";
+    public static final String KERNEL_PROPERTY = "kernel";
+    public static final String TILE_SIZE_PROPERTY = "tileSize";
+    public static final String CROP_X_PROPERTY = "cropX";
+    public static final String CROP_Y_PROPERTY = "cropY";
+    public static final String CROP_WIDTH_PROPERTY = "cropWidth";
+    public static final String CROP_HEIGHT_PROPERTY = "cropHeight";
 
     private final Connection connection;
-    private final Session session;
-    private final MessageProducer producer;
+    private final String destinationName;
+    private final DestinationType destinationType;
+    private final BlockingQueue<PooledProducer> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final AtomicInteger created = new AtomicInteger();
+
+    private volatile boolean closed;
 
-    public JmsMessageProducer(String host, String port, String topicName) throws NamingException, JMSException {
-        Context jndiContext = createJndiContext(host, port);
+    public JmsMessageProducer(String brokerUrl, String destinationName, DestinationType destinationType)
+            throws NamingException, JMSException {
+        this.destinationName = destinationName;
+        this.destinationType = destinationType;
+        Context jndiContext = createJndiContext(brokerUrl);
         ConnectionFactory connectionFactory = lookupConnectionFactory(jndiContext);
         connection = connectionFactory.createConnection();
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination destination = session.createTopic(topicName);
-        producer = session.createProducer(destination);
+        connection.setExceptionListener(e -> logger.error("JMS connection failed: {}", e.getMessage(), e));
         connection.start();
+        Metrics.gauge("zoom_jms_sessions", "Pooled JMS sessions", created::get);
+        Metrics.gauge("zoom_jms_idle_sessions", "Pooled JMS sessions not in use", idle::size);
 
-        logger.info("JMS Producer initialized and connected to topic '{}'", topicName);
+        logger.info("JMS Producer connected to {} for {} '{}' ({} sessions, async send {})",
+                brokerUrl, destinationType, destinationName, POOL_SIZE, ASYNC_SEND);
     }
 
-    private Context createJndiContext(String host, String port) throws NamingException {
+    private Context createJndiContext(String brokerUrl) throws NamingException {
         Properties props = new Properties();
         props.setProperty(Context.INITIAL_CONTEXT_FACTORY, INITIAL_CONTEXT_FACTORY);
-        props.setProperty(Context.PROVIDER_URL, "tcp://" + host + ":" + port);
+        props.setProperty(Context.PROVIDER_URL, brokerUrl);
         return new InitialContext(props);
     }
 
@@ -42,32 +95,162 @@ public class JmsMessageProducer implements AutoCloseable {
         return (ConnectionFactory) jndiContext.lookup(CONNECTION_FACTORY_JNDI);
     }
 
-    public void sendMessage(String jobId, double zoomLevel, byte[] imageBytes) throws JMSException {
-        TextMessage message = session.createTextMessage();
+    /**
+     * Publishes the image as a {@link BytesMessage}, copying it from the upload stream in fixed-size chunks.
+     * The job metadata travels as message properties so the consumer never has to parse the body, and the
+     * message priority is set from the image size so that small jobs are not stuck behind large ones.
+     * <p>
+     * With async send the call returns once the message has been written to the connection, and the
+     * returned future completes when the broker has accepted it (or failed to).
+     *
+     * @param zoomLevels one or more zoom levels; consumers that only read {@code zoomLevel} see the first
+     * @param kernel     resample kernel name
+     * @param tileSize   tile edge for a tile pyramid job, or 0 for a single zoomed image
+     * @param crop       part of the image to zoom, or {@code null} for all of it
+     * @throws JMSException if the message could not be built or handed to the connection
+     */
+    public CompletableFuture<Void> sendMessage(String jobId, List<Double> zoomLevels, String kernel, int tileSize,
+                                               Crop crop, InputStream imageStream) throws JMSException, IOException {
+        PooledProducer pooled = borrow();
+        boolean healthy = true;
+        try {
+            BytesMessage message = pooled.session().createBytesMessage();
+            message.setJMSCorrelationID(jobId);
+            message.setStringProperty(JOB_ID_PROPERTY, jobId);
+            message.setDoubleProperty(ZOOM_LEVEL_PROPERTY, zoomLevels.get(0));
+            if (zoomLevels.size() > 1) {
+                message.setStringProperty(ZOOM_LEVELS_PROPERTY, zoomLevels.stream()
+                        .map(String::valueOf)
+                        .collect(Collectors.joining(",")));
+            }
+            message.setStringProperty(KERNEL_PROPERTY, kernel);
+            if (tileSize > 0) {
+                message.setIntProperty(TILE_SIZE_PROPERTY, tileSize);
+            }
+            if (crop != null) {
+                message.setIntProperty(CROP_X_PROPERTY, crop.x());
+                message.setIntProperty(CROP_Y_PROPERTY, crop.y());
+                message.setIntProperty(CROP_WIDTH_PROPERTY, crop.width());
+                message.setIntProperty(CROP_HEIGHT_PROPERTY, crop.height());
+            }
+
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long totalBytes = 0;
+            int read;
+            while ((read = imageStream.read(buffer)) != -1) {
+                message.writeBytes(buffer, 0, read);
+                totalBytes += read;
+            }
+
+            int priority = priorityFor(totalBytes);
+            CompletableFuture<Void> acknowledged = send(pooled.producer(), message, priority);
+
+            logger.info("Sent JMS message for jobId='{}' with zoomLevels={} ({} bytes, priority {})",
+                    jobId, zoomLevels, totalBytes, priority);
+            return acknowledged;
+        } catch (JMSException | RuntimeException e) {
+            healthy = false;
+            throw e;
+        } finally {
+            giveBack(pooled, healthy);
+        }
+    }
+
+    private static int priorityFor(long imageBytes) {
+        if (imageBytes <= SMALL_JOB_BYTES) {
+            return SMALL_JOB_PRIORITY;
+        }
+        return imageBytes >= LARGE_JOB_BYTES ? LARGE_JOB_PRIORITY : Message.DEFAULT_PRIORITY;
+    }
+
+    private static CompletableFuture<Void> send(MessageProducer producer, Message message, int priority)
+            throws JMSException {
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        int deliveryMode = producer.getDeliveryMode();
+        long timeToLive = producer.getTimeToLive();
+        if (ASYNC_SEND && producer instanceof ActiveMQMessageProducer activeMqProducer) {
+            activeMqProducer.send(message, deliveryMode, priority, timeToLive, new AsyncCallback() {
+                @Override
+                public void onSuccess() {
+                    acknowledged.complete(null);
+                }
+
+                @Override
+                public void onException(JMSException exception) {
+                    acknowledged.completeExceptionally(exception);
+                }
+            });
+        } else {
+            producer.send(message, deliveryMode, priority, timeToLive);
+            acknowledged.complete(null);
+        }
+        return acknowledged;
+    }
+
+    private PooledProducer borrow() throws JMSException {
+        if (closed) {
+            throw new JMSException("JMS producer is closed");
+        }
+
+        PooledProducer pooled = idle.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        if (created.incrementAndGet() <= POOL_SIZE) {
+            try {
+                return createProducer();
+            } catch (JMSException | RuntimeException e) {
+                created.decrementAndGet();
+                throw e;
+            }
+        }
+        created.decrementAndGet();
 
-        String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-        String content = String.format(
-                "{\n  \"jobId\": \"%s\",\n  \"zoomLevel\": %.2f,\n  \"imageBase64\": \"%s\"\n}",
-                jobId, zoomLevel, base64Image
-        );
+        try {
+            pooled = idle.poll(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for a JMS session");
+        }
+        if (pooled == null) {
+            throw new JMSException("No JMS session available after " + BORROW_TIMEOUT_MS + " ms");
+        }
+        return pooled;
+    }
 
-        message.setText(content);
-        producer.send(message);
+    /**
+     * Returns a producer to the pool, or closes it when its last send failed, in which case a fresh one is
+     * created on demand.
+     */
+    private void giveBack(PooledProducer pooled, boolean healthy) {
+        if (healthy && !closed && idle.offer(pooled)) {
+            return;
+        }
+        created.decrementAndGet();
+        pooled.close();
+    }
 
-        logger.info("Sent JMS message for jobId='{}' with zoomLevel={}", jobId, zoomLevel);
+    private PooledProducer createProducer() throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            Destination destination = destinationType == DestinationType.QUEUE
+                    ? session.createQueue(destinationName)
+                    : session.createTopic(destinationName);
+            return new PooledProducer(session, session.createProducer(destination));
+        } catch (JMSException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
     }
 
     @Override
     public void close() {
+        closed = true;
+        PooledProducer pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.close();
+        }
         try {
-            if (producer != null) {
-                producer.close();
-                logger.debug("JMS MessageProducer closed.");
-            }
-            if (session != null) {
-                session.close();
-                logger.debug("JMS Session closed.");
-            }
             if (connection != null) {
                 connection.close();
                 logger.debug("JMS Connection closed.");
@@ -76,4 +259,34 @@ public class JmsMessageProducer implements AutoCloseable {
             logger.error("Error closing JMS resources: {}", e.getMessage(), e);
         }
     }
+
+    /**
+     * {@code QUEUE} hands every job to exactly one of the competing MDB consumers; {@code TOPIC} is the
+     * original publish/subscribe mode, where every subscriber gets every job.
+     */
+    public enum DestinationType {
+        QUEUE,
+        TOPIC;
+
+        static DestinationType parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A rectangle of the source image in pixels, counted from its top-left corner.
+     */
+    public record Crop(int x, int y, int width, int height) {
+    }
+
+    private record PooledProducer(Session session, MessageProducer producer) {
+        void close() {
+            try {
+                producer.close();
+                session.close();
+            } catch (JMSException e) {
+                logger.debug("Error closing pooled JMS session: {}", e.getMessage());
+            }
+        }
+    }
 }
@@ -1,15 +1,27 @@
 package ro.mihainiculai.c01;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import io.javalin.Javalin;
+import io.javalin.config.SizeUnit;
 import io.javalin.http.UploadedFile;
 import io.javalin.json.JavalinJackson;
 import io.javalin.plugin.bundled.CorsPluginConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public class Main {
@@ -17,15 +29,53 @@ public class Main {
 
     private static final String JMS_HOST = System.getenv().getOrDefault("JMS_BROKER_HOST", "0.0.0.0");
     private static final String JMS_PORT = System.getenv().getOrDefault("JMS_BROKER_PORT", "61616");
+    // The failover transport reconnects after a broker restart; sends block at most JMS_SEND_TIMEOUT_MS meanwhile.
+    // Compression deflates message bodies on the client, trading C01/C03 CPU for broker memory and bandwidth
+    private static final String JMS_BROKER_URL = System.getenv().getOrDefault("JMS_BROKER_URL",
+            "failover:(tcp://" + JMS_HOST + ":" + JMS_PORT + ")?initialReconnectDelay=100&maxReconnectDelay=5000&timeout="
+                    + System.getenv().getOrDefault("JMS_SEND_TIMEOUT_MS", "10000")
+                    + "&jms.useCompression=" + System.getenv().getOrDefault("JMS_USE_COMPRESSION", "false"));
     
-    private static final String JMS_TOPIC = "jms/topic/zoom";
+    private static final String JMS_DESTINATION = System.getenv().getOrDefault("JMS_DESTINATION", "jms/queue/zoom");
+    private static final JmsMessageProducer.DestinationType JMS_DESTINATION_TYPE = JmsMessageProducer.DestinationType.parse(
+            System.getenv().getOrDefault("JMS_DESTINATION_TYPE", "queue"));
     private static final String BMP_CONTENT_TYPE = "image/bmp";
+    // File header and info header up to the compression field
+    private static final int BMP_HEADER_BYTES = 34;
     private static final int SERVER_PORT = 8081;
-
+    private static final Set<String> KERNELS = Set.of("nearest", "area", "bilinear", "bicubic", "lanczos");
+    // Kernel for uploads that do not name one. It is resolved here and always sent along, so C03 and the
+    // zoom servers never pick a default of their own and cached results always name the kernel they used
+    private static final String DEFAULT_KERNEL = parseDefaultKernel(
+            System.getenv().getOrDefault("ZOOM_KERNEL", "area"));
+    // Accepted edge lengths for tile pyramid jobs
+    private static final int MIN_TILE_SIZE = 64;
+    private static final int MAX_TILE_SIZE = 2048;
+    // Zoom levels one upload may ask for; they share a single pass over the image
+    private static final int MAX_ZOOM_LEVELS = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_MAX_LEVELS_PER_JOB", "8"));
+
+    // Uploads above the in-memory size are spooled to disk by Jetty instead of being held on the heap
+    private static final String UPLOAD_SPOOL_DIR = System.getenv().getOrDefault(
+            "ZOOM_UPLOAD_SPOOL_DIR", System.getProperty("java.io.tmpdir"));
+    private static final int UPLOAD_IN_MEMORY_BYTES = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_UPLOAD_IN_MEMORY_BYTES", String.valueOf(1024 * 1024)));
+    private static final long UPLOAD_MAX_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_UPLOAD_MAX_BYTES", String.valueOf(2L * 1024 * 1024 * 1024)));
+    private static final String RETRY_AFTER_SECONDS = System.getenv().getOrDefault("ZOOM_RETRY_AFTER_SECONDS", "5");
+
+    private static final ResultCache resultCache = ResultCache.fromEnvironment();
+    private static final AdmissionController admissionController = AdmissionController.fromEnvironment();
     private static JmsMessageProducer jmsProducer;
 
+    // Lets every service attribute a request to its job without parsing the body
+    private static final String TRACE_HEADER = "X-Job-Id";
+    private static final Metrics.Counter UPLOAD_BYTES = Metrics.counter(
+            "zoom_upload_bytes_total", "Bytes of BMPs uploaded");
+
     public static void main(String[] args) {
         initializeJmsProducer();
+        registerGauges();
 
         Javalin app = createJavalinApp();
         logger.info("Server started on port {}", SERVER_PORT);
@@ -35,9 +85,24 @@ public class Main {
         addShutdownHook(app);
     }
 
+    private static String parseDefaultKernel(String value) {
+        String kernel = value.trim().toLowerCase(Locale.ROOT);
+        if (!KERNELS.contains(kernel)) {
+            throw new IllegalArgumentException("ZOOM_KERNEL must be one of " + KERNELS + ", got " + value);
+        }
+        return kernel;
+    }
+
+    private static void registerGauges() {
+        Metrics.gauge("zoom_inflight_jobs", "Admitted jobs not yet completed", admissionController::inFlightJobs);
+        Metrics.gauge("zoom_inflight_bytes", "Image bytes of admitted jobs not yet completed",
+                admissionController::inFlightBytes);
+        Metrics.gauge("zoom_websocket_sessions", "Connected WebSocket clients", WebSocketHandler::sessionCount);
+    }
+
     private static void initializeJmsProducer() {
         try {
-            jmsProducer = new JmsMessageProducer(JMS_HOST, JMS_PORT, JMS_TOPIC);
+            jmsProducer = new JmsMessageProducer(JMS_BROKER_URL, JMS_DESTINATION, JMS_DESTINATION_TYPE);
         } catch (Exception e) {
             logger.error("Failed to initialize JMS Producer: {}", e.getMessage(), e);
             System.exit(1);
@@ -45,15 +110,19 @@ public class Main {
     }
 
     private static Javalin createJavalinApp() {
-        return Javalin.create(config ->
-                config.bundledPlugins.enableCors(cors ->
-                        cors.addRule(CorsPluginConfig.CorsRule::anyHost)
-                )
-        ).start(SERVER_PORT);
+        return Javalin.create(config -> {
+            config.bundledPlugins.enableCors(cors ->
+                    cors.addRule(CorsPluginConfig.CorsRule::anyHost)
+            );
+            config.jetty.multipartConfig.cacheDirectory(UPLOAD_SPOOL_DIR);
+            config.jetty.multipartConfig.maxInMemoryFileSize(UPLOAD_IN_MEMORY_BYTES, SizeUnit.BYTES);
+            config.jetty.multipartConfig.maxFileSize(UPLOAD_MAX_BYTES, SizeUnit.BYTES);
+        }).start(SERVER_PORT);
     }
 
     private static void setupRoutes(Javalin app) {
         app.get("/", ctx -> ctx.result("Hello from C01!"));
+        app.get("/metrics", ctx -> ctx.contentType(Metrics.CONTENT_TYPE).result(Metrics.scrape()));
 
         app.post("/api/upload", Main::handleFileUpload);
 
@@ -67,12 +136,18 @@ public class Main {
                 logger.info("Client connected to WebSocket: {}", ctx.sessionId());
             });
 
-            ws.onMessage(ctx -> logger.info("WebSocket message from client: {}", ctx.message()));
+            ws.onMessage(ctx -> WebSocketHandler.handleMessage(ctx, ctx.message()));
 
             ws.onClose(ctx -> {
                 WebSocketHandler.removeSession(ctx);
                 logger.info("WebSocket closed: {}", ctx.sessionId());
             });
+
+            ws.onError(ctx -> {
+                WebSocketHandler.removeSession(ctx);
+                logger.warn("WebSocket error on {}: {}", ctx.sessionId(),
+                        ctx.error() != null ? ctx.error().getMessage() : "unknown");
+            });
         });
     }
 
@@ -101,50 +176,270 @@ public class Main {
             return;
         }
 
-        String zoomLevelParam = ctx.formParam("zoomLevel");
-        if (zoomLevelParam == null) {
-            logger.warn("Missing zoomLevel parameter.");
-            ctx.status(400).json(Map.of("message", "zoomLevel is missing."));
+        List<Double> zoomLevels;
+        try {
+            zoomLevels = parseZoomLevels(ctx);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid zoom levels: {}", e.getMessage());
+            ctx.status(400).json(Map.of("message", e.getMessage()));
             return;
         }
 
-        double zoomLevel;
+        String kernel = ctx.formParam("kernel");
+        if (kernel != null && !kernel.isBlank()) {
+            kernel = kernel.trim().toLowerCase(Locale.ROOT);
+            if (!KERNELS.contains(kernel)) {
+                logger.warn("Invalid kernel: {}", kernel);
+                ctx.status(400).json(Map.of("message", "kernel must be one of " + KERNELS + "."));
+                return;
+            }
+        } else {
+            kernel = DEFAULT_KERNEL;
+        }
+
+        // A tile size asks for a tile pyramid instead of a single zoomed image
+        int tileSize = 0;
+        String tileSizeParam = ctx.formParam("tileSize");
+        if (tileSizeParam != null && !tileSizeParam.isBlank()) {
+            try {
+                tileSize = Integer.parseInt(tileSizeParam.trim());
+            } catch (NumberFormatException e) {
+                tileSize = -1;
+            }
+            if (tileSize < MIN_TILE_SIZE || tileSize > MAX_TILE_SIZE) {
+                logger.warn("Invalid tileSize: {}", tileSizeParam);
+                ctx.status(400).json(Map.of("message",
+                        "tileSize must be between " + MIN_TILE_SIZE + " and " + MAX_TILE_SIZE + "."));
+                return;
+            }
+        }
+
+        int[] size;
         try {
-            zoomLevel = Double.parseDouble(zoomLevelParam);
-        } catch (NumberFormatException e) {
-            logger.warn("Invalid zoomLevel format: {}", zoomLevelParam);
-            ctx.status(400).json(Map.of("message", "Invalid zoomLevel format."));
+            size = bmpSize(uploadedFile);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unsupported BMP: {}", e.getMessage());
+            ctx.status(400).json(Map.of("message", e.getMessage()));
+            return;
+        }
+
+        // A crop rectangle (in source pixels, from the top-left corner) zooms only that part of the image
+        JmsMessageProducer.Crop crop;
+        try {
+            crop = parseCrop(ctx, size);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid crop: {}", e.getMessage());
+            ctx.status(400).json(Map.of("message", e.getMessage()));
             return;
         }
 
         String jobId = generateJobId();
-        logger.info("Received BMP file, jobId={}, zoomLevel={}", jobId, zoomLevel);
+        ctx.header(TRACE_HEADER, jobId);
+        logger.info("Received BMP file, jobId={}, zoomLevels={}, kernel={}, tileSize={}, crop={}",
+                jobId, zoomLevels, kernel, tileSize, crop);
+        UPLOAD_BYTES.add(uploadedFile.size());
+
+        String contentHash;
+        long hashStart = System.nanoTime();
+        try (InputStream imageStream = uploadedFile.content()) {
+            contentHash = ResultCache.hash(imageStream);
+            stage("hash").recordSince(hashStart);
+        } catch (Exception e) {
+            logger.error("Failed to read upload for jobId={}: {}", jobId, e.getMessage(), e);
+            ctx.status(500).json(Map.of("message", "Failed to read the uploaded file."));
+            return;
+        }
 
-        try {
-            byte[] fileBytes = readFileBytes(uploadedFile.content());
-            jmsProducer.sendMessage(jobId, zoomLevel, fileBytes);
+        // Levels processed before are answered from the cache, only the others go through the pipeline
+        Map<Double, String> cachedUrls = new LinkedHashMap<>();
+        List<ResultCache.Key> missing = new ArrayList<>();
+        for (double zoomLevel : zoomLevels) {
+            ResultCache.Key cacheKey = new ResultCache.Key(contentHash, zoomLevel, kernel, tileSize, crop);
+            String cachedUrl = resultCache.lookup(cacheKey);
+            if (cachedUrl != null) {
+                cachedUrls.put(zoomLevel, cachedUrl);
+            } else {
+                missing.add(cacheKey);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            countJob("cached");
+            logger.info("Cache hit for jobId={} (image {}), skipping processing", jobId, contentHash);
+            cachedUrls.forEach((zoomLevel, cachedUrl) -> notifyJobDone(jobId, zoomLevel, cachedUrl));
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("jobId", jobId);
+            if (zoomLevels.size() == 1) {
+                response.put("downloadUrl", cachedUrls.get(zoomLevels.get(0)));
+            } else {
+                response.put("downloadUrls", cachedUrls);
+            }
+            response.put("message", "Image already processed.");
+            ctx.json(response);
+            return;
+        }
+
+        AdmissionController.Decision decision = admissionController.tryAdmit(jobId, uploadedFile.size(),
+                missing.size());
+        if (decision != AdmissionController.Decision.ADMITTED) {
+            // 429 while all job slots are taken, 503 while the in-flight image bytes are at their limit
+            logger.warn("Rejected jobId={} ({}): {} jobs, {} bytes in flight", jobId, decision,
+                    admissionController.inFlightJobs(), admissionController.inFlightBytes());
+            countJob(decision == AdmissionController.Decision.TOO_MANY_JOBS ? "rejected_jobs" : "rejected_bytes");
+            ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+            ctx.status(decision == AdmissionController.Decision.TOO_MANY_JOBS ? 429 : 503)
+                    .json(Map.of("message", "Server busy, please retry later."));
+            return;
+        }
+
+        resultCache.jobSubmitted(jobId, missing);
+        List<Double> missingLevels = missing.stream().map(ResultCache.Key::zoomLevel).toList();
+        long sendStart = System.nanoTime();
+        try (InputStream imageStream = uploadedFile.content()) {
+            jmsProducer.sendMessage(jobId, missingLevels, kernel, tileSize, crop, imageStream).whenComplete((ignored, error) -> {
+                stage("jms_send").recordSince(sendStart);
+                if (error != null) {
+                    admissionController.release(jobId);
+                    resultCache.jobFailed(jobId);
+                    countJob("send_failed");
+                    logger.error("Broker rejected the message for jobId={}: {}", jobId, error.getMessage(), error);
+                    // The client was already told the job is processing, so it learns of the failure on /ws
+                    try {
+                        WebSocketHandler.sendJobFailureNotification(jobId, "Failed to send message to JMS.");
+                    } catch (JsonProcessingException e) {
+                        logger.error("Failed to send WebSocket notification for jobId={}: {}", jobId, e.getMessage(), e);
+                    }
+                }
+            });
         } catch (Exception e) {
+            admissionController.release(jobId);
+            resultCache.jobFailed(jobId);
+            countJob("send_failed");
             logger.error("Failed to send message to JMS for jobId={}: {}", jobId, e.getMessage(), e);
             ctx.status(500).json(Map.of("message", "Failed to send message to JMS."));
             return;
         }
 
+        countJob("accepted");
+        cachedUrls.forEach((zoomLevel, cachedUrl) -> notifyJobDone(jobId, zoomLevel, cachedUrl));
         Map<String, Object> response = new HashMap<>();
         response.put("jobId", jobId);
+        if (!cachedUrls.isEmpty()) {
+            response.put("downloadUrls", cachedUrls);
+        }
         response.put("message", "Image received. Processing...");
         ctx.json(response);
     }
 
+    /**
+     * Reads the comma separated {@code zoomLevels} parameter, or the single {@code zoomLevel} when it is
+     * absent. Repeated levels are dropped.
+     *
+     * @throws IllegalArgumentException with a message for the client if the levels are missing or invalid
+     */
+    private static List<Double> parseZoomLevels(io.javalin.http.Context ctx) {
+        String param = ctx.formParam("zoomLevels");
+        if (param == null || param.isBlank()) {
+            param = ctx.formParam("zoomLevel");
+        }
+        if (param == null || param.isBlank()) {
+            throw new IllegalArgumentException("zoomLevel is missing.");
+        }
+
+        Set<Double> zoomLevels = new LinkedHashSet<>();
+        for (String value : param.split(",")) {
+            if (value.isBlank()) {
+                continue;
+            }
+            try {
+                zoomLevels.add(Double.parseDouble(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid zoomLevel format.");
+            }
+        }
+        if (zoomLevels.isEmpty()) {
+            throw new IllegalArgumentException("zoomLevel is missing.");
+        }
+        if (zoomLevels.size() > MAX_ZOOM_LEVELS) {
+            throw new IllegalArgumentException("At most " + MAX_ZOOM_LEVELS + " zoom levels per upload.");
+        }
+        return List.copyOf(zoomLevels);
+    }
+
     private static boolean isValidContentType(String contentType) {
         return contentType != null && contentType.equalsIgnoreCase(BMP_CONTENT_TYPE);
     }
 
-    private static String generateJobId() {
-        return "job-" + UUID.randomUUID();
+    /**
+     * Reads the optional cropX, cropY, cropWidth and cropHeight parameters, which come all together or not
+     * at all, and checks the rectangle against the {@code size} (width, height) of the image.
+     *
+     * @return the crop, or {@code null} when none was asked for
+     * @throws IllegalArgumentException with a message for the client if the crop is invalid
+     */
+    private static JmsMessageProducer.Crop parseCrop(io.javalin.http.Context ctx, int[] size) {
+        String[] names = {"cropX", "cropY", "cropWidth", "cropHeight"};
+        int[] values = new int[names.length];
+        int given = 0;
+        for (int i = 0; i < names.length; i++) {
+            String param = ctx.formParam(names[i]);
+            if (param == null || param.isBlank()) {
+                continue;
+            }
+            given++;
+            try {
+                values[i] = Integer.parseInt(param.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(names[i] + " must be an integer.");
+            }
+        }
+        if (given == 0) {
+            return null;
+        }
+        if (given < names.length) {
+            throw new IllegalArgumentException("cropX, cropY, cropWidth and cropHeight must be given together.");
+        }
+
+        JmsMessageProducer.Crop crop = new JmsMessageProducer.Crop(values[0], values[1], values[2], values[3]);
+        if (crop.x() < 0 || crop.y() < 0 || crop.width() <= 0 || crop.height() <= 0
+                || crop.x() + (long) crop.width() > size[0] || crop.y() + (long) crop.height() > size[1]) {
+            throw new IllegalArgumentException(String.format(
+                    "The crop must lie within the %dx%d image.", size[0], size[1]));
+        }
+        return crop;
     }
 
-    private static byte[] readFileBytes(InputStream inputStream) throws Exception {
-        return inputStream.readAllBytes();
+    /**
+     * Width and height from the BMP info header, which must describe an uncompressed 24-bit bottom-up image:
+     * the only layout the pipeline cuts into strips.
+     *
+     * @throws IllegalArgumentException with a message for the client for any other file
+     */
+    private static int[] bmpSize(UploadedFile uploadedFile) {
+        byte[] header;
+        try (InputStream imageStream = uploadedFile.content()) {
+            header = imageStream.readNBytes(BMP_HEADER_BYTES);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read the uploaded file.");
+        }
+        if (header.length < BMP_HEADER_BYTES || header[0] != 'B' || header[1] != 'M') {
+            throw new IllegalArgumentException("File must be a BMP image.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int width = buffer.getInt(18);
+        int height = buffer.getInt(22);
+        if (buffer.getShort(28) != 24 || buffer.getInt(30) != 0) {
+            throw new IllegalArgumentException("Only uncompressed 24-bit BMPs are supported.");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Only bottom-up BMPs with a positive width are supported.");
+        }
+        return new int[]{width, height};
+    }
+
+    private static String generateJobId() {
+        return "job-" + UUID.randomUUID();
     }
 
     private static void handleJobCompletionNotification(io.javalin.http.Context ctx) {
@@ -160,6 +455,28 @@ public class Main {
 
         String jobId = requestBody.get("jobId");
         String downloadUrl = requestBody.get("downloadUrl");
+        String error = requestBody.get("error");
+        Double zoomLevel;
+        try {
+            zoomLevel = requestBody.get("zoomLevel") != null ? Double.valueOf(requestBody.get("zoomLevel")) : null;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid zoomLevel in the request: {}", requestBody.get("zoomLevel"));
+            ctx.status(400).json(Map.of("message", "Invalid zoomLevel format."));
+            return;
+        }
+
+        if (jobId != null && downloadUrl == null && error != null) {
+            logger.warn("Job failed, jobId={}: {}", jobId, error);
+            recordJobTime(admissionController.release(jobId), "failed");
+            resultCache.jobFailed(jobId);
+            try {
+                WebSocketHandler.sendJobFailureNotification(jobId, error);
+            } catch (JsonProcessingException e) {
+                logger.error("Failed to send WebSocket notification for jobId={}: {}", jobId, e.getMessage(), e);
+            }
+            ctx.status(200).result("OK");
+            return;
+        }
 
         if (jobId == null || downloadUrl == null) {
             logger.warn("Missing jobId or downloadUrl in the request.");
@@ -167,10 +484,15 @@ public class Main {
             return;
         }
 
-        logger.info("Job completed, jobId={}. Notifying WebSocket clients...", jobId);
+        logger.info("Job completed, jobId={}, zoomLevel={}. Notifying WebSocket clients...", jobId, zoomLevel);
+        // A job with several zoom levels is done with its last one
+        if (admissionController.outputDone(jobId)) {
+            recordJobTime(admissionController.release(jobId), "completed");
+        }
+        resultCache.jobCompleted(jobId, zoomLevel, downloadUrl);
 
         try {
-            WebSocketHandler.sendJobCompletionNotification(jobId, downloadUrl);
+            notifyJobDone(jobId, zoomLevel, downloadUrl);
         } catch (Exception e) {
             logger.error("Failed to send WebSocket notification for jobId={}: {}", jobId, e.getMessage(), e);
             ctx.status(500).json(Map.of("message", "Failed to send WebSocket notification."));
@@ -179,4 +501,28 @@ public class Main {
 
         ctx.status(200).result("OK");
     }
+
+    private static Metrics.Timer stage(String stage) {
+        return Metrics.timer("zoom_stage_seconds", "Time spent per stage of an upload", "stage", stage);
+    }
+
+    private static void countJob(String outcome) {
+        Metrics.counter("zoom_jobs_total", "Uploads by outcome", "outcome", outcome).inc();
+    }
+
+    private static void recordJobTime(long nanos, String outcome) {
+        countJob(outcome);
+        if (nanos >= 0) {
+            Metrics.timer("zoom_job_seconds", "Time from admitting a job to its notification",
+                    "outcome", outcome).record(nanos);
+        }
+    }
+
+    private static void notifyJobDone(String jobId, Double zoomLevel, String downloadUrl) {
+        try {
+            WebSocketHandler.sendJobCompletionNotification(jobId, zoomLevel, downloadUrl);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize notification for " + jobId, e);
+        }
+    }
 }
@@ -0,0 +1,234 @@
+package ro.mihainiculai.c01;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Remembers the download URL of finished jobs by image content, zoom level and kernel, so that an
+ * identical upload can be answered without running the pipeline again.
+ * <p>
+ * The memory tier is an LRU map bounded by {@code ZOOM_CACHE_MAX_ENTRIES}. When {@code ZOOM_CACHE_DIR}
+ * is set, entries are also written there (one small file per key) and survive restarts; the directory
+ * is trimmed to {@code ZOOM_CACHE_DISK_MAX_ENTRIES} files, oldest first.
+ */
+public class ResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final int MAX_ENTRIES = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_CACHE_MAX_ENTRIES", "1000"));
+    private static final int DISK_MAX_ENTRIES = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_CACHE_DISK_MAX_ENTRIES", "100000"));
+    private static final long PENDING_TTL_NANOS = TimeUnit.MINUTES.toNanos(Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_CACHE_PENDING_TTL_MINUTES", "60")));
+    private static final int DISK_TRIM_INTERVAL = 100;
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Map<Key, String> memory = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, PendingJob> pendingJobs = new ConcurrentHashMap<>();
+    private final AtomicInteger diskWrites = new AtomicInteger();
+    private final Path directory;
+
+    public ResultCache(Path directory) {
+        this.directory = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                logger.info("Result cache persisted in {}", directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create cache directory " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Builds the cache from the environment; the disk tier is enabled by {@code ZOOM_CACHE_DIR}.
+     */
+    public static ResultCache fromEnvironment() {
+        String directory = System.getenv("ZOOM_CACHE_DIR");
+        return new ResultCache(directory == null || directory.isBlank() ? null : Path.of(directory));
+    }
+
+    /**
+     * SHA-256 of the image, hex encoded.
+     */
+    public static String hash(InputStream content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the download URL of an earlier identical job, or {@code null}
+     */
+    public String lookup(Key key) {
+        synchronized (memory) {
+            String downloadUrl = memory.get(key);
+            if (downloadUrl != null) {
+                return downloadUrl;
+            }
+        }
+
+        String downloadUrl = readFromDisk(key);
+        if (downloadUrl != null) {
+            synchronized (memory) {
+                memory.put(key, downloadUrl);
+            }
+        }
+        return downloadUrl;
+    }
+
+    /**
+     * Remembers which keys a published job belongs to, one per zoom level, so each result can be cached when
+     * its level completes.
+     */
+    public void jobSubmitted(String jobId, List<Key> keys) {
+        // Jobs that never complete would otherwise stay here forever
+        long now = System.nanoTime();
+        pendingJobs.values().removeIf(pending -> now - pending.submittedNanos() > PENDING_TTL_NANOS);
+        Map<Double, Key> byLevel = new ConcurrentHashMap<>();
+        keys.forEach(key -> byLevel.put(key.zoomLevel(), key));
+        pendingJobs.put(jobId, new PendingJob(byLevel, now));
+    }
+
+    /**
+     * Caches the result of one zoom level of a job published through {@link #jobSubmitted}; unknown jobs are
+     * ignored. A completion without a level is only attributed to jobs with a single level.
+     */
+    public void jobCompleted(String jobId, Double zoomLevel, String downloadUrl) {
+        PendingJob pending = pendingJobs.get(jobId);
+        if (pending == null) {
+            return;
+        }
+
+        Map<Double, Key> keys = pending.keys();
+        Double level = zoomLevel != null ? zoomLevel
+                : keys.size() == 1 ? keys.keySet().iterator().next() : null;
+        Key key = level != null ? keys.remove(level) : null;
+        if (keys.isEmpty()) {
+            pendingJobs.remove(jobId);
+        }
+        if (key == null) {
+            return;
+        }
+
+        synchronized (memory) {
+            memory.put(key, downloadUrl);
+        }
+        writeToDisk(key, downloadUrl);
+    }
+
+    /**
+     * Forgets a published job that will not complete, so nothing is cached for it.
+     */
+    public void jobFailed(String jobId) {
+        pendingJobs.remove(jobId);
+    }
+
+    private String readFromDisk(Key key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key.fileName());
+        try {
+            return Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            logger.warn("Could not read cache entry {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToDisk(Key key, String downloadUrl) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            // Write and rename so a concurrent reader never sees a partial entry
+            Path temp = Files.createTempFile(directory, "entry-", ".tmp");
+            Files.writeString(temp, downloadUrl, StandardCharsets.UTF_8);
+            Files.move(temp, directory.resolve(key.fileName()),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write cache entry for {}: {}", key, e.getMessage());
+            return;
+        }
+
+        if (diskWrites.incrementAndGet() % DISK_TRIM_INTERVAL == 0) {
+            trimDisk();
+        }
+    }
+
+    private void trimDisk() {
+        try (Stream<Path> files = Files.list(directory)) {
+            Path[] entries = files
+                    .filter(path -> path.getFileName().toString().endsWith(".url"))
+                    .sorted(Comparator.comparingLong(ResultCache::lastModified))
+                    .toArray(Path[]::new);
+            for (int i = 0; i < entries.length - DISK_MAX_ENTRIES; i++) {
+                Files.deleteIfExists(entries[i]);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not trim cache directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param contentHash SHA-256 of the uploaded image
+     * @param kernel      resample kernel; uploads without one are given C01's default before the key is built
+     * @param tileSize    tile edge of a tile pyramid job, or 0 for a single image
+     * @param crop        zoomed part of the image, or {@code null} for all of it
+     */
+    public record Key(String contentHash, double zoomLevel, String kernel, int tileSize,
+                      JmsMessageProducer.Crop crop) {
+        String fileName() {
+            String mode = tileSize > 0 ? "-tiles" + tileSize : "";
+            String region = crop == null ? ""
+                    : "-crop" + crop.x() + "_" + crop.y() + "_" + crop.width() + "_" + crop.height();
+            return contentHash + "-" + Double.toString(zoomLevel).replace('.', '_') + "-" + kernel + mode
+                    + region + ".url";
+        }
+    }
+
+    private record PendingJob(Map<Double, Key> keys, long submittedNanos) {
+    }
+}
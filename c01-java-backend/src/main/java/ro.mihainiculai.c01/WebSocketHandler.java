@@ -1,43 +1,252 @@
 package ro.mihainiculai.c01;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.websocket.WsCloseStatus;
 import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Routes job completion notifications to the WebSocket sessions that asked for them. A client sends
+ * {@code {"type": "subscribe", "jobId": "..."}} after uploading, and only sessions subscribed to a job
+ * are notified when it completes, so the cost of a notification does not depend on how many clients
+ * are connected.
+ * <p>
+ * Every session has its own bounded send queue drained with asynchronous writes. A client whose queue
+ * fills up is disconnected instead of holding up anyone else. Recent completions are kept for a while,
+ * so a client that subscribes after its job has already finished is notified right away. A job with
+ * several zoom levels completes once per level, and every completion names its level.
+ */
 public class WebSocketHandler {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketHandler.class);
-    private static final Set<WsContext> sessions = new HashSet<>();
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
-    public static synchronized void registerSession(WsContext session) {
-        sessions.add(session);
+    private static final int MAX_QUEUED_MESSAGES = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_WS_MAX_QUEUED_MESSAGES", "64"));
+    private static final int MAX_SUBSCRIPTIONS = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_WS_MAX_SUBSCRIPTIONS", "100"));
+    private static final int RECENT_COMPLETIONS = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_WS_RECENT_COMPLETIONS", "1000"));
+
+    private static final Map<String, Subscriber> sessions = new ConcurrentHashMap<>();
+    private static final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private static final Map<String, List<String>> recentCompletions = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > RECENT_COMPLETIONS;
+        }
+    };
+
+    public static int sessionCount() {
+        return sessions.size();
+    }
+
+    public static void registerSession(WsContext session) {
+        sessions.put(session.sessionId(), new Subscriber(session));
         logger.debug("WebSocket session registered: {}", session.sessionId());
     }
 
-    public static synchronized void removeSession(WsContext session) {
-        sessions.remove(session);
+    public static void removeSession(WsContext session) {
+        Subscriber subscriber = sessions.remove(session.sessionId());
+        if (subscriber == null) {
+            return;
+        }
+        for (String jobId : subscriber.jobIds) {
+            unsubscribe(subscriber, jobId);
+        }
         logger.debug("WebSocket session removed: {}", session.sessionId());
     }
 
-    public static void sendJobCompletionNotification(String jobId, String downloadUrl) throws JsonProcessingException {
+    /**
+     * Handles a client message: {@code subscribe} or {@code unsubscribe} with a {@code jobId}.
+     */
+    public static void handleMessage(WsContext session, String message) {
+        Subscriber subscriber = sessions.get(session.sessionId());
+        if (subscriber == null) {
+            return;
+        }
+
+        JsonNode request;
+        try {
+            request = objectMapper.readTree(message);
+        } catch (JsonProcessingException e) {
+            logger.warn("Ignoring malformed WebSocket message from {}", session.sessionId());
+            return;
+        }
+
+        String type = request.path("type").asText();
+        String jobId = request.path("jobId").asText(null);
+        if (jobId == null || jobId.isBlank()) {
+            logger.warn("Ignoring WebSocket message without jobId from {}", session.sessionId());
+            return;
+        }
+
+        switch (type) {
+            case "subscribe" -> subscribe(subscriber, jobId);
+            case "unsubscribe" -> {
+                subscriber.jobIds.remove(jobId);
+                unsubscribe(subscriber, jobId);
+            }
+            default -> logger.warn("Ignoring WebSocket message of type '{}' from {}", type, session.sessionId());
+        }
+    }
+
+    /**
+     * Tells the job's subscribers that the result for {@code zoomLevel} is ready; the level is left out
+     * when it is {@code null}.
+     */
+    public static void sendJobCompletionNotification(String jobId, Double zoomLevel, String downloadUrl)
+            throws JsonProcessingException {
+        publish(jobId, completionMessage(jobId, zoomLevel, downloadUrl));
+    }
+
+    private static void publish(String jobId, String jsonMessage) {
+        synchronized (recentCompletions) {
+            recentCompletions.computeIfAbsent(jobId, id -> new ArrayList<>()).add(jsonMessage);
+        }
+
+        Set<Subscriber> targets = subscribers.get(jobId);
+        if (targets == null) {
+            logger.debug("No WebSocket subscribers for job {}", jobId);
+            return;
+        }
+
+        logger.debug("Sending job notification to {} sessions: {}", targets.size(), jsonMessage);
+        for (Subscriber subscriber : targets) {
+            subscriber.enqueue(jsonMessage);
+        }
+    }
+
+    /**
+     * Tells the job's subscribers that it failed; like a completion, it is replayed to late subscribers.
+     */
+    public static void sendJobFailureNotification(String jobId, String error) throws JsonProcessingException {
         Map<String, String> notification = new HashMap<>();
         notification.put("jobId", jobId);
+        notification.put("error", error);
+        publish(jobId, objectMapper.writeValueAsString(notification));
+    }
+
+    private static void subscribe(Subscriber subscriber, String jobId) {
+        if (subscriber.jobIds.size() >= MAX_SUBSCRIPTIONS && !subscriber.jobIds.contains(jobId)) {
+            logger.warn("Session {} exceeded {} subscriptions", subscriber.session.sessionId(), MAX_SUBSCRIPTIONS);
+            return;
+        }
+
+        subscriber.jobIds.add(jobId);
+        subscribers.computeIfAbsent(jobId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+
+        // The job may have finished before the client got around to subscribing
+        List<String> completed;
+        synchronized (recentCompletions) {
+            completed = List.copyOf(recentCompletions.getOrDefault(jobId, List.of()));
+        }
+        completed.forEach(subscriber::enqueue);
+    }
+
+    private static void unsubscribe(Subscriber subscriber, String jobId) {
+        subscribers.computeIfPresent(jobId, (id, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static String completionMessage(String jobId, Double zoomLevel, String downloadUrl)
+            throws JsonProcessingException {
+        Map<String, Object> notification = new HashMap<>();
+        notification.put("jobId", jobId);
+        if (zoomLevel != null) {
+            notification.put("zoomLevel", zoomLevel);
+        }
         notification.put("downloadUrl", downloadUrl);
-        String jsonMessage = objectMapper.writeValueAsString(notification);
+        return objectMapper.writeValueAsString(notification);
+    }
 
-        logger.debug("Sending job completion notification: {}", jsonMessage);
+    /**
+     * One connected session and its outgoing messages. At most one write is outstanding at a time; the
+     * next queued message is written from the completion callback of the previous one.
+     */
+    private static final class Subscriber {
+        private final WsContext session;
+        private final Set<String> jobIds = ConcurrentHashMap.newKeySet();
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private boolean writing;
+        private boolean dropped;
+
+        private Subscriber(WsContext session) {
+            this.session = session;
+        }
+
+        void enqueue(String message) {
+            boolean overflow = false;
+            synchronized (this) {
+                if (dropped) {
+                    return;
+                }
+                if (!writing) {
+                    writing = true;
+                } else if (queue.size() < MAX_QUEUED_MESSAGES) {
+                    queue.add(message);
+                    return;
+                } else {
+                    overflow = true;
+                }
+            }
+
+            if (overflow) {
+                logger.warn("WebSocket client {} is not keeping up, disconnecting it", session.sessionId());
+                drop();
+                session.closeSession(WsCloseStatus.TRY_AGAIN_LATER, "Client too slow");
+                return;
+            }
+            write(message);
+        }
+
+        private void write(String message) {
+            session.session.getRemote().sendString(message, new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable cause) {
+                    logger.debug("WebSocket send to {} failed: {}", session.sessionId(), cause.getMessage());
+                    drop();
+                }
+
+                @Override
+                public void writeSuccess() {
+                    writeNext();
+                }
+            });
+        }
+
+        private void writeNext() {
+            String next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null) {
+                    writing = false;
+                    return;
+                }
+            }
+            write(next);
+        }
 
-        synchronized (sessions) {
-            for (WsContext session : sessions) {
-                session.send(jsonMessage);
+        private void drop() {
+            synchronized (this) {
+                dropped = true;
+                queue.clear();
             }
+            removeSession(session);
         }
     }
 }
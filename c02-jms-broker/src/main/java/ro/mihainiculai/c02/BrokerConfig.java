@@ -0,0 +1,147 @@
+package ro.mihainiculai.c02;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.ConstantPendingMessageLimitStrategy;
+import org.apache.activemq.broker.region.policy.IndividualDeadLetterStrategy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.apache.activemq.usage.SystemUsage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Broker settings, read from the environment with defaults sized for zoom jobs (single messages of
+ * tens of megabytes, a handful in flight at a time).
+ *
+ * @param transport              {@code tcp}, {@code nio} or {@code auto+nio} (also accepts STOMP, AMQP and MQTT)
+ * @param persistent             keep messages in KahaDB so queued jobs survive a broker restart
+ * @param journalSync            KahaDB journal sync strategy: {@code always}, {@code periodic} or {@code never}
+ * @param memoryLimitMb          heap the broker may use for messages before producer flow control kicks in
+ * @param destinationMemoryMb    share of the memory limit a single destination may use
+ * @param sendFailTimeoutMs      how long a send may block on a full broker before it fails (0 blocks forever)
+ * @param topicPendingLimit      messages kept for a slow topic subscriber before the oldest are discarded
+ */
+public record BrokerConfig(
+        String host,
+        int port,
+        String transport,
+        boolean persistent,
+        String dataDirectory,
+        int journalFileMb,
+        String journalSync,
+        long memoryLimitMb,
+        long storeLimitMb,
+        long tempLimitMb,
+        long destinationMemoryMb,
+        boolean producerFlowControl,
+        long sendFailTimeoutMs,
+        int topicPendingLimit
+) {
+    public static BrokerConfig fromEnvironment() {
+        return new BrokerConfig(
+                env("BROKER_HOST", "0.0.0.0"),
+                Integer.parseInt(env("BROKER_PORT", "61616")),
+                env("BROKER_TRANSPORT", "nio"),
+                Boolean.parseBoolean(env("BROKER_PERSISTENT", "true")),
+                env("BROKER_DATA_DIR", "activemq-data"),
+                Integer.parseInt(env("BROKER_KAHADB_JOURNAL_MB", "64")),
+                env("BROKER_KAHADB_SYNC", "periodic"),
+                Long.parseLong(env("BROKER_MEMORY_LIMIT_MB", "512")),
+                Long.parseLong(env("BROKER_STORE_LIMIT_MB", "10240")),
+                Long.parseLong(env("BROKER_TEMP_LIMIT_MB", "5120")),
+                Long.parseLong(env("BROKER_DESTINATION_MEMORY_MB", "256")),
+                Boolean.parseBoolean(env("BROKER_PRODUCER_FLOW_CONTROL", "true")),
+                Long.parseLong(env("BROKER_SEND_FAIL_TIMEOUT_MS", "30000")),
+                Integer.parseInt(env("BROKER_TOPIC_PENDING_LIMIT", "100"))
+        );
+    }
+
+    public String connectorUri() {
+        return transport + "://" + host + ":" + port;
+    }
+
+    /**
+     * Builds a configured, not yet started broker.
+     */
+    public BrokerService createBroker() throws IOException {
+        BrokerService broker = new BrokerService();
+        broker.setDataDirectory(dataDirectory);
+        broker.setPersistent(persistent);
+        if (persistent) {
+            broker.setPersistenceAdapter(kahaDb());
+        }
+
+        SystemUsage usage = broker.getSystemUsage();
+        usage.getMemoryUsage().setLimit(megabytes(memoryLimitMb));
+        usage.getStoreUsage().setLimit(megabytes(storeLimitMb));
+        usage.getTempUsage().setLimit(megabytes(tempLimitMb));
+        // A full broker fails the send after a while instead of blocking the producer indefinitely
+        if (sendFailTimeoutMs > 0) {
+            usage.setSendFailIfNoSpaceAfterTimeout(sendFailTimeoutMs);
+        }
+
+        broker.setDestinationPolicy(destinationPolicy());
+        try {
+            broker.addConnector(connectorUri());
+        } catch (Exception e) {
+            throw new IOException("Invalid connector " + connectorUri(), e);
+        }
+        return broker;
+    }
+
+    private KahaDBPersistenceAdapter kahaDb() {
+        KahaDBPersistenceAdapter kahaDb = new KahaDBPersistenceAdapter();
+        kahaDb.setDirectory(new File(dataDirectory, "kahadb"));
+        // Larger journal files, so a single BMP does not span several of them
+        kahaDb.setJournalMaxFileLength((int) megabytes(journalFileMb));
+        kahaDb.setJournalDiskSyncStrategy(journalSync.toUpperCase(Locale.ROOT));
+        kahaDb.setConcurrentStoreAndDispatchQueues(true);
+        return kahaDb;
+    }
+
+    /**
+     * Per-destination limits. Queues deliver higher priority (smaller) jobs first, and jobs that keep
+     * failing end up in a dead letter queue of their own ({@code DLQ.jms/queue/zoom}) instead of the shared
+     * {@code ActiveMQ.DLQ}. Stored messages drop their in-memory copy, so a queue of large images is held
+     * in the store rather than on the heap.
+     */
+    private PolicyMap destinationPolicy() {
+        IndividualDeadLetterStrategy deadLetterStrategy = new IndividualDeadLetterStrategy();
+        deadLetterStrategy.setQueuePrefix("DLQ.");
+        deadLetterStrategy.setUseQueueForQueueMessages(true);
+
+        PolicyEntry queuePolicy = new PolicyEntry();
+        queuePolicy.setQueue(">");
+        queuePolicy.setPrioritizedMessages(true);
+        queuePolicy.setDeadLetterStrategy(deadLetterStrategy);
+        queuePolicy.setReduceMemoryFootprint(true);
+        queuePolicy.setMemoryLimit(megabytes(destinationMemoryMb));
+        queuePolicy.setProducerFlowControl(producerFlowControl);
+
+        ConstantPendingMessageLimitStrategy pendingLimit = new ConstantPendingMessageLimitStrategy();
+        pendingLimit.setLimit(topicPendingLimit);
+
+        PolicyEntry topicPolicy = new PolicyEntry();
+        topicPolicy.setTopic(">");
+        topicPolicy.setReduceMemoryFootprint(true);
+        topicPolicy.setMemoryLimit(megabytes(destinationMemoryMb));
+        topicPolicy.setProducerFlowControl(producerFlowControl);
+        topicPolicy.setPendingMessageLimitStrategy(pendingLimit);
+
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setPolicyEntries(List.of(queuePolicy, topicPolicy));
+        return policyMap;
+    }
+
+    private static long megabytes(long value) {
+        return value * 1024 * 1024;
+    }
+
+    private static String env(String name, String defaultValue) {
+        return System.getenv().getOrDefault(name, defaultValue);
+    }
+}
@@ -0,0 +1,190 @@
+package ro.mihainiculai.c02;
+
+import jakarta.jms.BytesMessage;
+import jakarta.jms.Connection;
+import jakarta.jms.DeliveryMode;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Queue;
+import jakarta.jms.Session;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes BMP-sized messages through the broker and reports throughput and heap use.
+ * <p>
+ * Without {@code url=...} an embedded broker is started from the same environment settings as
+ * {@link Main}, so the reported heap is the broker's plus the benchmark clients'. With a URL the
+ * benchmark only acts as a client of a running broker.
+ * <p>
+ * Usage: {@code java -cp c02-jms-broker.jar ro.mihainiculai.c02.BrokerLoadBenchmark
+ * [sizesMb=1,12,48] [messages=40] [producers=2] [consumers=2] [url=tcp://host:61616]}
+ */
+public class BrokerLoadBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(BrokerLoadBenchmark.class);
+
+    private static final String QUEUE_NAME = "benchmark.zoom";
+    private static final long HEAP_SAMPLE_INTERVAL_MS = 20;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int messages = Integer.parseInt(options.getOrDefault("messages", "40"));
+        int producers = Integer.parseInt(options.getOrDefault("producers", "2"));
+        int consumers = Integer.parseInt(options.getOrDefault("consumers", "2"));
+        String[] sizes = options.getOrDefault("sizesMb", "1,12,48").split(",");
+
+        BrokerService broker = null;
+        String url = options.get("url");
+        if (url == null) {
+            BrokerConfig config = BrokerConfig.fromEnvironment();
+            broker = config.createBroker();
+            broker.start();
+            url = "tcp://127.0.0.1:" + config.port();
+            logger.info("Started embedded broker with {}", config);
+        }
+
+        try {
+            System.out.printf("%8s %8s %10s %10s %14s %14s%n",
+                    "size MB", "messages", "msg/s", "MB/s", "peak heap MB", "broker mem %");
+            for (String size : sizes) {
+                Result result = run(url, broker, (int) (Double.parseDouble(size.trim()) * 1024 * 1024),
+                        messages, producers, consumers);
+                System.out.printf("%8s %8d %10.1f %10.1f %14d %14d%n",
+                        size.trim(), messages, result.messagesPerSecond(), result.megabytesPerSecond(),
+                        result.peakHeapBytes() / (1024 * 1024), result.peakBrokerMemoryPercent());
+            }
+        } finally {
+            if (broker != null) {
+                broker.stop();
+                broker.waitUntilStopped();
+            }
+        }
+    }
+
+    private static Result run(String url, BrokerService broker, int messageBytes, int messages,
+                              int producers, int consumers) throws Exception {
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
+        // Same consumer settings as the MDB resource adapter
+        factory.getPrefetchPolicy().setQueuePrefetch(1);
+
+        byte[] payload = bmpLikePayload(messageBytes);
+        CountDownLatch received = new CountDownLatch(messages);
+        AtomicLong peakHeap = new AtomicLong();
+        AtomicLong peakBrokerMemory = new AtomicLong();
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            Runtime runtime = Runtime.getRuntime();
+            peakHeap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+            if (broker != null) {
+                peakBrokerMemory.accumulateAndGet(
+                        broker.getSystemUsage().getMemoryUsage().getPercentUsage(), Math::max);
+            }
+        }, 0, HEAP_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        Connection connection = factory.createConnection();
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        List<Session> consumerSessions = new ArrayList<>();
+        try {
+            connection.start();
+            for (int i = 0; i < consumers; i++) {
+                Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                consumerSessions.add(session);
+                MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE_NAME));
+                consumer.setMessageListener(message -> received.countDown());
+            }
+
+            long start = System.nanoTime();
+            List<Future<?>> sends = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int count = messages / producers + (p < messages % producers ? 1 : 0);
+                sends.add(producerPool.submit(() -> {
+                    send(connection, payload, count);
+                    return null;
+                }));
+            }
+            for (Future<?> send : sends) {
+                send.get();
+            }
+            if (!received.await(10, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Timed out with " + received.getCount() + " messages outstanding");
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            return new Result(messages / seconds, (double) messages * messageBytes / (1024 * 1024) / seconds,
+                    peakHeap.get(), peakBrokerMemory.get());
+        } finally {
+            producerPool.shutdownNow();
+            sampler.shutdownNow();
+            for (Session session : consumerSessions) {
+                session.close();
+            }
+            connection.close();
+        }
+    }
+
+    private static void send(Connection connection, byte[] payload, int count) throws JMSException {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            Queue queue = session.createQueue(QUEUE_NAME);
+            MessageProducer producer = session.createProducer(queue);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            for (int i = 0; i < count; i++) {
+                BytesMessage message = session.createBytesMessage();
+                message.writeBytes(payload);
+                message.setIntProperty("sequence", i);
+                producer.send(message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY, 0);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * A 24-bit BMP header followed by smooth gradients with some noise, so that compressed transports see
+     * roughly the redundancy of a photo rather than all zeros.
+     */
+    private static byte[] bmpLikePayload(int size) {
+        byte[] payload = new byte[Math.max(size, 54)];
+        payload[0] = 'B';
+        payload[1] = 'M';
+        long seed = 42;
+        for (int i = 54; i < payload.length; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            payload[i] = (byte) ((i / 3 % 256) + (seed >>> 61));
+        }
+        return payload;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+
+    private record Result(double messagesPerSecond, double megabytesPerSecond,
+                          long peakHeapBytes, long peakBrokerMemoryPercent) {
+    }
+}
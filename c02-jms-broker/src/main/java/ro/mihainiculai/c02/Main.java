@@ -6,16 +6,13 @@ import org.slf4j.LoggerFactory;
 
 public class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
-    private static final String BROKER_IP = "0.0.0.0";
-    private static final String BROKER_PORT = "61616";
 
     public static void main(String[] args) {
-        BrokerService broker = new BrokerService();
+        BrokerConfig config = BrokerConfig.fromEnvironment();
         try {
-            String connectorUri = "tcp://" + BROKER_IP + ":" + BROKER_PORT;
-            broker.addConnector(connectorUri);
+            BrokerService broker = config.createBroker();
             broker.start();
-            logger.info("Broker started at {}", connectorUri);
+            logger.info("Broker started at {} ({})", config.connectorUri(), config);
         } catch (Exception exception) {
             logger.error("Failed to start the broker: {}", exception.getMessage(), exception);
             System.exit(1);
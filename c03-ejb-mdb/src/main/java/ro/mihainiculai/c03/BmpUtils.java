@@ -1,105 +1,62 @@
 package ro.mihainiculai.c03;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
 
 public class BmpUtils {
-    private static final Logger logger = LoggerFactory.getLogger(BmpUtils.class);
+    public static final int HEADER_SIZE = 54;
 
-    public static BmpDimensions extractDimensions(byte[] bmp) {
-        if (bmp.length < 54 || bmp[0] != 'B' || bmp[1] != 'M') {
+    public static BmpDimensions extractDimensions(ByteBuffer bmp) {
+        if (bmp.limit() < HEADER_SIZE || bmp.get(0) != 'B' || bmp.get(1) != 'M') {
             throw new IllegalArgumentException("Invalid BMP format");
         }
 
+        ByteBuffer header = bmp.duplicate().order(ByteOrder.LITTLE_ENDIAN);
         return new BmpDimensions(
-                readInt(bmp, 18),
-                readInt(bmp, 22),
-                readInt(bmp, 10)
+                header.getInt(18),
+                header.getInt(22),
+                header.getInt(10)
         );
     }
 
-    public static byte[] getTopHalf(byte[] original) {
-        BmpDimensions dim = extractDimensions(original);
-        return extractRegion(original, dim, 0, dim.height() / 2);
-    }
-
-    public static byte[] getBottomHalf(byte[] original) {
-        BmpDimensions dim = extractDimensions(original);
-        int start = dim.height() / 2;
-        return extractRegion(original, dim, start, dim.height() - start);
-    }
-
-    private static byte[] extractRegion(byte[] original, BmpDimensions dim, int startRow, int numRows) {
-        int rowSize = ((dim.width() * 3) + 3) & ~3;
-        int pixelStart = dim.pixelDataOffset();
-        int totalRows = dim.height();
-
-        int from = totalRows - startRow - numRows;
-        int to = from + numRows;
-
-        byte[] header = Arrays.copyOfRange(original, 0, dim.pixelDataOffset());
-        updateHeader(header, numRows, rowSize * numRows);
-
-        byte[] pixels = new byte[numRows * rowSize];
-        System.arraycopy(
-                original,
-                pixelStart + from * rowSize,
-                pixels,
-                0,
-                pixels.length
-        );
-
-        return concatenate(header, pixels);
-    }
-
-    public static byte[] combineParts(byte[] top, byte[] bottom) {
-        try {
-            BmpDimensions topDim = extractDimensions(top);
-            BmpDimensions bottomDim = extractDimensions(bottom);
-
-            if (topDim.width() != bottomDim.width()) {
-                throw new IllegalArgumentException("Incompatible widths");
-            }
-
-            byte[] newHeader = Arrays.copyOfRange(top, 0, topDim.pixelDataOffset());
-            updateHeader(newHeader, topDim.height() + bottomDim.height(),
-                    (topDim.height() + bottomDim.height()) * ((topDim.width() * 3 + 3) & ~3));
-
-            byte[] combinedPixels = concatenate(
-                    Arrays.copyOfRange(bottom, bottomDim.pixelDataOffset(), bottom.length),
-                    Arrays.copyOfRange(top, topDim.pixelDataOffset(), top.length)
-            );
-
-            return concatenate(newHeader, combinedPixels);
-        } catch (Exception e) {
-            logger.error("Combine failed: {}", e.getMessage());
-            return new byte[0];
-        }
+    /**
+     * Writes a 54-byte header for a 24-bit BMP of the given size at the start of {@code bmp}.
+     */
+    public static void writeHeader(ByteBuffer bmp, int width, int height) {
+        int imageSize = rowSize(width) * height;
+
+        bmp.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .put(0, (byte) 'B')
+                .put(1, (byte) 'M')
+                .putInt(2, HEADER_SIZE + imageSize)
+                .putInt(10, HEADER_SIZE)
+                .putInt(14, 40)
+                .putInt(18, width)
+                .putInt(22, height)
+                .putShort(26, (short) 1)
+                .putShort(28, (short) 24)
+                .putInt(34, imageSize);
     }
 
-    private static int readInt(byte[] data, int offset) {
-        return ByteBuffer.wrap(data, offset, 4)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .getInt();
-    }
+    /**
+     * Copies the header of {@code bmp} (everything before the pixel data) and rewrites its height and
+     * sizes for a strip of {@code rows} rows. Only the header is copied; the rows are sent as a view.
+     */
+    public static byte[] stripHeader(ByteBuffer bmp, BmpDimensions dim, int rows) {
+        byte[] header = new byte[dim.pixelDataOffset()];
+        bmp.get(0, header);
 
-    private static void updateHeader(byte[] header, int height, int imageSize) {
+        int imageSize = rowSize(dim.width()) * rows;
         ByteBuffer.wrap(header)
                 .order(ByteOrder.LITTLE_ENDIAN)
-                .putInt(22, height)
+                .putInt(22, rows)
                 .putInt(34, imageSize)
                 .putInt(2, header.length + imageSize);
+        return header;
     }
 
-    private static byte[] concatenate(byte[] a, byte[] b) {
-        byte[] result = new byte[a.length + b.length];
-        System.arraycopy(a, 0, result, 0, a.length);
-        System.arraycopy(b, 0, result, a.length, b.length);
-        return result;
+    public static int rowSize(int width) {
+        return ((width * 3) + 3) & ~3;
     }
 
     public record BmpDimensions(int width, int height, int pixelDataOffset) {
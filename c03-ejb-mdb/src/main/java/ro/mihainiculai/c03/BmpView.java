@@ -0,0 +1,259 @@
+package ro.mihainiculai.c03;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A 24-bit bottom-up BMP held in a single {@link ByteBuffer}: a heap array for ordinary images, or a
+ * memory-mapped temporary file once the image is larger than {@code ZOOM_MAP_THRESHOLD_BYTES}.
+ * <p>
+ * Rows are handed out as slices of the backing buffer, so cutting the source into strips and
+ * assembling the zoomed strips never copies pixel data beyond the single write into the output.
+ * Rows are in storage order (bottom-up). Closing a mapped view deletes its file; the mapping itself
+ * is released by the garbage collector.
+ */
+public final class BmpView implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BmpView.class);
+
+    private static final long MAP_THRESHOLD_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_MAP_THRESHOLD_BYTES", String.valueOf(256L * 1024 * 1024)));
+    private static final Path SPOOL_DIR = Path.of(
+            System.getenv().getOrDefault("ZOOM_SPOOL_DIR", System.getProperty("java.io.tmpdir")));
+    private static final int READ_CHUNK_BYTES = 1024 * 1024;
+
+    private final ByteBuffer buffer;
+    private final BmpUtils.BmpDimensions dimensions;
+    private final int stride;
+    private final Path file;
+
+    private BmpView(ByteBuffer buffer, Path file) {
+        this.buffer = buffer;
+        this.file = file;
+        this.dimensions = BmpUtils.extractDimensions(buffer);
+        this.stride = BmpUtils.rowSize(dimensions.width());
+
+        if (dimensions.width() <= 0 || dimensions.height() <= 0) {
+            throw new IllegalArgumentException("Only bottom-up BMPs are supported");
+        }
+        // Strips are cut at the 24-bit stride, so any other layout would be split at the wrong offsets
+        ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int bitsPerPixel = header.getShort(28);
+        int compression = header.getInt(30);
+        if (bitsPerPixel != 24 || compression != 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Only uncompressed 24-bit BMPs are supported, got %d bits per pixel with compression %d",
+                    bitsPerPixel, compression));
+        }
+        if (dimensions.pixelDataOffset() + (long) stride * dimensions.height() > buffer.limit()) {
+            throw new IllegalArgumentException("Truncated BMP pixel data");
+        }
+    }
+
+    /**
+     * Wraps a BMP held in a byte array without copying it.
+     */
+    public static BmpView wrap(byte[] bmp) {
+        return new BmpView(ByteBuffer.wrap(bmp), null);
+    }
+
+    /**
+     * Allocates a zero-filled 24-bit BMP with a 54-byte header.
+     */
+    public static BmpView allocate(int width, int height) throws IOException {
+        long size = BmpUtils.HEADER_SIZE + (long) BmpUtils.rowSize(width) * height;
+        Spool spool = spool(size);
+        try {
+            BmpUtils.writeHeader(spool.buffer(), width, height);
+            return new BmpView(spool.buffer(), spool.file());
+        } catch (RuntimeException e) {
+            spool.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a BMP of {@code length} bytes from {@code reader} chunk by chunk into a new buffer, so a
+     * large image is never held on the heap in full.
+     */
+    public static <E extends Exception> BmpView read(long length, ChunkReader<E> reader) throws E, IOException {
+        Spool spool = spool(length);
+        try {
+            ByteBuffer target = spool.buffer();
+            byte[] chunk = new byte[(int) Math.min(READ_CHUNK_BYTES, Math.max(1, length))];
+            int position = 0;
+            while (position < length) {
+                int read = reader.read(chunk);
+                if (read < 0) {
+                    break;
+                }
+                int count = (int) Math.min(read, length - position);
+                target.put(position, chunk, 0, count);
+                position += count;
+            }
+            if (position < length) {
+                throw new IllegalArgumentException("Image ended after " + position + " of " + length + " bytes");
+            }
+            return new BmpView(target, spool.file());
+        } catch (Exception e) {
+            spool.delete();
+            throw e;
+        }
+    }
+
+    public BmpUtils.BmpDimensions dimensions() {
+        return dimensions;
+    }
+
+    public int width() {
+        return dimensions.width();
+    }
+
+    public int height() {
+        return dimensions.height();
+    }
+
+    public int stride() {
+        return stride;
+    }
+
+    /**
+     * Total size of the BMP file in bytes.
+     */
+    public int length() {
+        return buffer.limit();
+    }
+
+    /**
+     * The whole BMP file.
+     */
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * The memory-mapped file backing this image, or {@code null} if it lives on the heap.
+     */
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * A view of storage rows {@code [fromRow, toRow)}; writes through it land in this image.
+     */
+    public ByteBuffer rows(int fromRow, int toRow) {
+        checkRows(fromRow, toRow);
+        return buffer.slice(dimensions.pixelDataOffset() + fromRow * stride, (toRow - fromRow) * stride);
+    }
+
+    /**
+     * Copies columns {@code [fromColumn, toColumn)} of storage rows {@code [fromRow, toRow)} into a new image.
+     */
+    public BmpView region(int fromColumn, int toColumn, int fromRow, int toRow) throws IOException {
+        checkRows(fromRow, toRow);
+        if (fromColumn < 0 || toColumn > width() || fromColumn >= toColumn) {
+            throw new IllegalArgumentException(String.format(
+                    "Columns [%d, %d) outside of a %d column image", fromColumn, toColumn, width()));
+        }
+
+        BmpView region = allocate(toColumn - fromColumn, toRow - fromRow);
+        int rowBytes = (toColumn - fromColumn) * 3;
+        int regionOffset = region.dimensions.pixelDataOffset();
+        for (int row = 0; row < region.height(); row++) {
+            region.buffer.put(regionOffset + row * region.stride, buffer,
+                    dimensions.pixelDataOffset() + (fromRow + row) * stride + fromColumn * 3, rowBytes);
+        }
+        return region;
+    }
+
+    /**
+     * A copy of the header describing a strip of {@code rows} rows of this image.
+     */
+    public byte[] stripHeader(int rows) {
+        return BmpUtils.stripHeader(buffer, dimensions, rows);
+    }
+
+    /**
+     * Copies all pixel rows of {@code strip} into this image, starting at storage row {@code targetRow}.
+     */
+    public void putRows(BmpView strip, int targetRow) {
+        if (strip.width() != width()) {
+            throw new IllegalArgumentException("Incompatible widths");
+        }
+        checkRows(targetRow, targetRow + strip.height());
+        buffer.put(dimensions.pixelDataOffset() + targetRow * stride,
+                strip.buffer, strip.dimensions.pixelDataOffset(), strip.height() * stride);
+    }
+
+    /**
+     * Flushes a memory-mapped image to its file, e.g. before the file is read back for upload.
+     */
+    public void force() {
+        if (buffer instanceof MappedByteBuffer mapped) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (file != null) {
+            new Spool(buffer, file).delete();
+        }
+    }
+
+    private void checkRows(int fromRow, int toRow) {
+        if (fromRow < 0 || toRow > dimensions.height() || fromRow > toRow) {
+            throw new IllegalArgumentException(String.format(
+                    "Rows [%d, %d) outside of a %d row image", fromRow, toRow, dimensions.height()));
+        }
+    }
+
+    private static Spool spool(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Image too large: " + size + " bytes");
+        }
+        if (size <= MAP_THRESHOLD_BYTES) {
+            return new Spool(ByteBuffer.allocate((int) size), null);
+        }
+
+        Path file = Files.createTempFile(SPOOL_DIR, "zoom-", ".bmp");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new Spool(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    private record Spool(ByteBuffer buffer, Path file) {
+        void delete() {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.warn("Could not delete spool file {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkReader<E extends Exception> {
+        /**
+         * Fills {@code chunk} with the next bytes.
+         *
+         * @return the number of bytes read, or {@code -1} at the end of the data
+         */
+        int read(byte[] chunk) throws E;
+    }
+}
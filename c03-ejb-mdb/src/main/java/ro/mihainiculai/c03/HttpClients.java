@@ -0,0 +1,26 @@
+package ro.mihainiculai.c03;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * The HTTP client shared by every request C03 makes to C06 and C01. A client owns a connection pool and
+ * selector thread, so building one per request throws away the connections it has already opened.
+ * HTTP/2 is preferred and falls back to HTTP/1.1 when the other side does not speak it. Where the runtime
+ * has virtual threads, responses are handled on them rather than on the client's default thread pool.
+ */
+final class HttpClients {
+    static final HttpClient SHARED = build();
+
+    private static HttpClient build() {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(Long.parseLong(
+                        System.getenv().getOrDefault("ZOOM_HTTP_CONNECT_TIMEOUT_MS", "10000"))));
+        StripExecutor.newVirtualThreadExecutor().ifPresent(builder::executor);
+        return builder.build();
+    }
+
+    private HttpClients() {
+    }
+}
@@ -1,35 +1,66 @@
 package ro.mihainiculai.c03;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.Resource;
 import jakarta.ejb.ActivationConfigProperty;
 import jakarta.ejb.MessageDriven;
+import jakarta.ejb.MessageDrivenContext;
+import jakarta.jms.JMSException;
 import jakarta.jms.Message;
 import jakarta.jms.MessageListener;
-import jakarta.jms.TextMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
+import ro.mihainiculai.rmi.BmpStrip;
 import ro.mihainiculai.rmi.RmiHelper;
+import ro.mihainiculai.rmi.StripRequest;
+import ro.mihainiculai.rmi.ZoomEndpoint;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
+/**
+ * Consumes zoom jobs from {@code jms/queue/zoom}. Every C03 replica competes for the same queue, so each
+ * job is processed once and throughput grows with the number of replicas.
+ * <p>
+ * Once its strips are dispatched, a job runs to completion (combine, upload to C06, notify C01) as a
+ * chain of futures, and the MDB thread goes back to the queue. A job that fails before that point rolls
+ * the transaction back and is redelivered with exponential back-off; after {@code maximumRedeliveries}
+ * attempts the broker moves it to the dead letter queue. Later failures are reported to C01, unless
+ * {@code ZOOM_ASYNC_PIPELINE=false} keeps the MDB thread until the end so that they are redelivered too.
+ * <p>
+ * The activation settings below are defaults: TomEE overrides them from system properties such as
+ * {@code -DImageProcessingMDB.activation.maxSessions=8}, and
+ * {@code -DImageProcessingMDB.activation.destination=jms/topic/zoom} together with
+ * {@code -DImageProcessingMDB.activation.destinationType=jakarta.jms.Topic} restores the topic mode.
+ */
 @MessageDriven(
         activationConfig = {
-                @ActivationConfigProperty(propertyName = "destination", propertyValue = "jms/topic/zoom"),
-                @ActivationConfigProperty(propertyName = "destinationType", propertyValue = "jakarta.jms.Topic"),
+                @ActivationConfigProperty(propertyName = "destination", propertyValue = "jms/queue/zoom"),
+                @ActivationConfigProperty(propertyName = "destinationType", propertyValue = "jakarta.jms.Queue"),
+                @ActivationConfigProperty(propertyName = "maxSessions", propertyValue = "4"),
+                @ActivationConfigProperty(propertyName = "maximumRedeliveries", propertyValue = "3"),
+                @ActivationConfigProperty(propertyName = "initialRedeliveryDelay", propertyValue = "2000"),
+                @ActivationConfigProperty(propertyName = "useExponentialBackOff", propertyValue = "true"),
+                @ActivationConfigProperty(propertyName = "redeliveryBackOffMultiplier", propertyValue = "2"),
         }
 )
 public class ImageProcessingMDB implements MessageListener {
     private static final Logger logger = LoggerFactory.getLogger(ImageProcessingMDB.class);
-    private static final ExecutorService RMI_EXECUTOR = Executors.newFixedThreadPool(2);
-    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+    private static final RmiHelper RMI_HELPER = RmiHelper.fromEnvironment();
+    private static final StripExecutor STRIP_EXECUTOR = StripExecutor.fromEnvironment(RMI_HELPER.endpointCount());
     private static final ObjectMapper mapper = new ObjectMapper();
 
     private static final String C06_IMAGE_UPLOAD_URL = System.getenv().getOrDefault(
@@ -37,81 +68,503 @@ public class ImageProcessingMDB implements MessageListener {
             "http://0.0.0.0:3001/api/upload"
     );
 
-    private final RmiHelper rmiServiceHelper;
+    // 0 picks the strip count from the endpoint count and image size
+    private static final int STRIP_COUNT = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_STRIP_COUNT", "0"));
+    private static final long TARGET_STRIP_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_TARGET_STRIP_BYTES", String.valueOf(16L * 1024 * 1024)));
 
-    public ImageProcessingMDB() {
-        String c04RmiHost = System.getenv().getOrDefault("C04_RMI_HOST", "0.0.0.0");
-        String c04RmiPort = System.getenv().getOrDefault("C04_RMI_PORT", "10991");
-        String c05RmiHost = System.getenv().getOrDefault("C05_RMI_HOST", "0.0.0.0");
-        String c05RmiPort = System.getenv().getOrDefault("C05_RMI_PORT", "10992");
+    // Adaptive dispatch: share of the output rows left for whichever zoom server is idle first, and into
+    // how many strips per server it is cut
+    private static final double STEAL_FRACTION = Double.parseDouble(
+            System.getenv().getOrDefault("ZOOM_STEAL_FRACTION", "0.2"));
+    private static final int STEAL_STRIPS_PER_SERVER = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_STEAL_STRIPS_PER_SERVER", "2"));
 
-        this.rmiServiceHelper = new RmiHelper(c04RmiHost, c04RmiPort, c05RmiHost, c05RmiPort);
+    // Builds every tile pyramid level below the full-size one from the level above it
+    private static final String TILE_KERNEL = System.getenv().getOrDefault("ZOOM_TILE_KERNEL", "area");
+
+    // Strips larger than this are streamed through a strip session in chunks
+    private static final long STREAM_THRESHOLD_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_STREAM_THRESHOLD_BYTES", String.valueOf(32L * 1024 * 1024)));
+    private static final int STREAM_CHUNK_BYTES = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_STREAM_CHUNK_BYTES", String.valueOf(4 * 1024 * 1024)));
+
+    // With the async pipeline onMessage returns once the strips are dispatched; false keeps the MDB thread
+    // until the result is stored, so that upload failures are redelivered as well
+    private static final boolean ASYNC_PIPELINE = Boolean.parseBoolean(
+            System.getenv().getOrDefault("ZOOM_ASYNC_PIPELINE", "true"));
+    // Jobs started but not yet finished; onMessage waits for a slot, which leaves further jobs in the queue
+    private static final int MAX_ACTIVE_JOBS = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_MAX_ACTIVE_JOBS", "8"));
+    private static final Semaphore ACTIVE_JOBS = new Semaphore(MAX_ACTIVE_JOBS);
+
+    private static final Metrics.Counter BYTES_IN = Metrics.counter(
+            "zoom_bytes_total", "Image bytes received from the queue and stored in C06", "direction", "in");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter(
+            "zoom_bytes_total", "Image bytes received from the queue and stored in C06", "direction", "out");
+    private static final Metrics.Counter RMI_BYTES_SENT = Metrics.counter(
+            "zoom_rmi_bytes_total", "Strip bytes sent to and received from the zoom servers", "direction", "sent");
+    private static final Metrics.Counter RMI_BYTES_RECEIVED = Metrics.counter(
+            "zoom_rmi_bytes_total", "Strip bytes sent to and received from the zoom servers", "direction", "received");
+
+    static {
+        Metrics.gauge("zoom_active_jobs", "Jobs between dispatch and notification",
+                () -> MAX_ACTIVE_JOBS - ACTIVE_JOBS.availablePermits());
+        Metrics.gauge("zoom_waiting_jobs", "MDB threads waiting for a job slot", ACTIVE_JOBS::getQueueLength);
     }
 
+    @Resource
+    private MessageDrivenContext context;
+
     @Override
     public void onMessage(Message message) {
-        if (!(message instanceof TextMessage)) {
-            logger.warn("Received unexpected message type. Ignoring.");
+        long received = System.nanoTime();
+        recordQueueWait(message);
+        try {
+            ACTIVE_JOBS.acquire();
+            stage("wait_for_slot").recordSince(received);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            context.setRollbackOnly();
             return;
         }
 
+        ZoomJob job = null;
+        CompletableFuture<Void> pipeline;
         try {
-            TextMessage textMessage = (TextMessage) message;
-            String jsonPayload = textMessage.getText();
-            JsonNode jsonNode = mapper.readTree(jsonPayload);
+            long decodeStart = System.nanoTime();
+            job = ZoomJob.fromMessage(message);
+            stage("decode").recordSince(decodeStart);
+            if (job == null) {
+                logger.warn("Received unexpected message type. Ignoring.");
+                ACTIVE_JOBS.release();
+                return;
+            }
+            pipeline = process(job, STRIP_EXECUTOR.forJob(job.jobId(), received));
+        } catch (Exception e) {
+            if (job != null) {
+                job.close();
+            }
+            ACTIVE_JOBS.release();
+            countJob("rolled_back");
+            logger.error("Processing failed (delivery {}): {}", deliveryCount(message), e.getMessage(), e);
+            // Rolling back makes the broker redeliver the job, or dead-letter it once the attempts are used up
+            context.setRollbackOnly();
+            return;
+        }
 
-            String jobId = jsonNode.get("jobId").asText();
-            double zoomLevel = jsonNode.get("zoomLevel").asDouble();
-            String imageBase64 = jsonNode.get("imageBase64").asText();
+        ZoomJob started = job;
+        pipeline = pipeline.whenComplete((ignored, error) -> {
+            started.close();
+            ACTIVE_JOBS.release();
+            countJob(error == null ? "completed" : "failed");
+            Metrics.timer("zoom_job_seconds", "Time from receiving a job to notifying C01",
+                    "outcome", error == null ? "completed" : "failed").recordSince(received);
+        });
 
-            byte[] originalImageBytes = Base64.getDecoder().decode(imageBase64);
-            BmpUtils.BmpDimensions dimensions = BmpUtils.extractDimensions(originalImageBytes);
+        if (!ASYNC_PIPELINE) {
+            try {
+                pipeline.join();
+            } catch (CompletionException e) {
+                logger.error("Processing failed (delivery {}): {}", deliveryCount(message),
+                        e.getCause().getMessage(), e.getCause());
+                context.setRollbackOnly();
+            }
+            return;
+        }
 
-            logger.info("Processing job {} ({}x{}, zoom {})",
-                    jobId, dimensions.width(), dimensions.height(), zoomLevel);
+        // The message is acknowledged when onMessage returns, so a failure from here on can no longer be
+        // redelivered; C01 is told instead, so the client is not left waiting for its timeout
+        pipeline.whenComplete((ignored, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                logger.error("Job {} failed: {}", started.jobId(), cause.getMessage(), cause);
+                JobNotifier.notifyJobFailedAsync(started.jobId(), cause.getMessage()).exceptionally(notifyError -> {
+                    logger.error("Could not report the failure of job {} to C01: {}",
+                            started.jobId(), notifyError.getMessage());
+                    return null;
+                });
+            }
+        });
+    }
 
-            // Split image directly using byte manipulation
-            byte[] topPart = BmpUtils.getTopHalf(originalImageBytes);
-            byte[] bottomPart = BmpUtils.getBottomHalf(originalImageBytes);
-            originalImageBytes = null; // Help GC
+    /**
+     * Starts zooming the job's image to each of its zoom levels. The returned future completes once every
+     * result is stored in C06 and C01 has been notified of it; the calling thread only plans and dispatches
+     * the strips.
+     */
+    private CompletableFuture<Void> process(ZoomJob job, StripExecutor.Scope scope) throws IOException {
+        BYTES_IN.add(job.image().length());
+        List<Double> zoomLevels = job.zoomLevels();
+        if (zoomLevels.size() > 1 && job.crop() == null && job.tileSize() == 0) {
+            return processLevels(job, scope);
+        }
 
-            // Process parts in parallel with bounded executor
-            CompletableFuture<byte[]> topFuture = CompletableFuture.supplyAsync(
-                    () -> rmiServiceHelper.callC04(topPart, zoomLevel), RMI_EXECUTOR);
+        // Crops and tile pyramids are planned per level, so each level is a job of its own on the same image
+        List<CompletableFuture<Void>> results = new ArrayList<>(zoomLevels.size());
+        for (double zoomLevel : zoomLevels) {
+            try {
+                results.add(processLevel(job, zoomLevel, scope));
+            } catch (IOException | RuntimeException e) {
+                if (results.isEmpty()) {
+                    throw e;
+                }
+                // Earlier levels are already in flight, so the job can no longer be rolled back
+                results.add(CompletableFuture.failedFuture(e));
+                break;
+            }
+        }
+        return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Zooms the job's image to a single level, stores the result and notifies C01 of it.
+     */
+    private CompletableFuture<Void> processLevel(ZoomJob job, double zoomLevel, StripExecutor.Scope scope)
+            throws IOException {
+        long splitStart = System.nanoTime();
+        String jobId = job.jobId();
+        String outputId = job.outputId(zoomLevel);
+        String kernel = job.kernel();
+        BmpView source = job.image();
 
-            CompletableFuture<byte[]> bottomFuture = CompletableFuture.supplyAsync(
-                    () -> rmiServiceHelper.callC05(bottomPart, zoomLevel), RMI_EXECUTOR);
+        logger.info("Processing job {} ({}x{}, zoom {}, kernel {}, tile size {}, crop {})",
+                jobId, source.width(), source.height(), zoomLevel, kernel, job.tileSize(), job.crop());
 
-            byte[] finalImage = topFuture.thenCombine(bottomFuture, BmpUtils::combineParts).join();
+        int targetWidth = targetSize(source.width(), zoomLevel);
+        int targetHeight = targetSize(source.height(), zoomLevel);
+
+        // A crop only sends, resamples and stores its own part of the zoom
+        Viewport viewport;
+        BmpView region;
+        if (job.crop() == null) {
+            viewport = Viewport.whole(source.width(), source.height(), targetWidth, targetHeight);
+            region = source;
+        } else {
+            viewport = Viewport.crop(source.width(), source.height(), targetWidth, targetHeight, job.crop());
+            region = source.region(viewport.sourceColumnStart(), viewport.sourceColumnEnd(),
+                    viewport.sourceRowStart(), viewport.sourceRowEnd());
+        }
 
-            String downloadUrl = uploadToNodeServer(finalImage, jobId);
-            if (downloadUrl != null) {
-                JobNotifier.notifyJobDone(jobId, downloadUrl);
+        BmpView finalImage;
+        CompletableFuture<Void> strips;
+        try {
+            finalImage = BmpView.allocate(viewport.width(), viewport.height());
+            strips = zoomInto(region, viewport, finalImage, kernel, scope);
+        } catch (IOException | RuntimeException e) {
+            if (region != source) {
+                region.close();
             }
-        } catch (Exception e) {
-            logger.error("Processing failed: {}", e.getMessage(), e);
+            throw e;
+        }
+        if (region != source) {
+            // Strips are sent as views of the region, so it is only released once they are all back
+            strips = strips.whenComplete((ignored, error) -> region.close());
         }
+        stage("split").recordSince(splitStart);
+
+        CompletableFuture<String> stored;
+        if (job.tileSize() > 0) {
+            TilePyramid pyramid = new TilePyramid(viewport.width(), viewport.height(), job.tileSize());
+            stored = strips
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            finalImage.close();
+                        }
+                    })
+                    .thenCompose(ignored -> timed("upload",
+                            () -> storeLevels(pyramid, pyramid.maxLevel(), finalImage, outputId, scope)
+                                    .thenCompose(levels -> TileStore.putDescriptor(outputId, pyramid, scope))));
+        } else {
+            stored = strips
+                    .thenCompose(ignored -> timed("upload", () -> uploadToNodeServer(finalImage, outputId, scope)))
+                    .whenComplete((downloadUrl, error) -> finalImage.close());
+        }
+
+        return notifyDone(jobId, zoomLevel, stored);
     }
 
-    private String uploadToNodeServer(byte[] imageData, String jobId) {
+    /**
+     * Zooms the whole image to several levels in one pass: the source is cut into bands once, and each band
+     * is sent to a zoom server a single time together with the output rows of every level it feeds.
+     */
+    private CompletableFuture<Void> processLevels(ZoomJob job, StripExecutor.Scope scope) throws IOException {
+        long splitStart = System.nanoTime();
+        String jobId = job.jobId();
+        String kernel = job.kernel();
+        BmpView source = job.image();
+        List<Double> zoomLevels = job.zoomLevels();
+
+        logger.info("Processing job {} ({}x{}, zoom levels {}, kernel {})",
+                jobId, source.width(), source.height(), zoomLevels, kernel);
+
+        List<BmpView> outputs = new ArrayList<>(zoomLevels.size());
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(C06_IMAGE_UPLOAD_URL))
-                    .header("Content-Type", "application/octet-stream")
-                    .header("jobId", jobId)
-                    .POST(HttpRequest.BodyPublishers.ofByteArray(imageData))
-                    .build();
+            for (double zoomLevel : zoomLevels) {
+                outputs.add(BmpView.allocate(targetSize(source.width(), zoomLevel),
+                        targetSize(source.height(), zoomLevel)));
+            }
+        } catch (IOException | RuntimeException e) {
+            outputs.forEach(BmpView::close);
+            throw e;
+        }
+
+        int[] targetHeights = outputs.stream().mapToInt(BmpView::height).toArray();
+        List<StripPlanner.Batch> plan = StripPlanner.planLevels(source.height(), targetHeights,
+                stripCount(source.length()));
+        CompletableFuture<Void> strips = CompletableFuture.allOf(plan.stream()
+                .map(batch -> CompletableFuture.runAsync(
+                        () -> zoomBatch(source, outputs, batch, kernel, scope), scope))
+                .toArray(CompletableFuture[]::new));
+        stage("split").recordSince(splitStart);
+
+        // Every level is stored and reported on its own, with the level telling the results apart
+        List<CompletableFuture<Void>> results = new ArrayList<>(outputs.size());
+        for (int i = 0; i < outputs.size(); i++) {
+            BmpView output = outputs.get(i);
+            double zoomLevel = zoomLevels.get(i);
+            String outputId = job.outputId(zoomLevel);
+            CompletableFuture<String> stored = strips
+                    .thenCompose(ignored -> timed("upload", () -> uploadToNodeServer(output, outputId, scope)))
+                    .whenComplete((downloadUrl, error) -> output.close());
+            results.add(notifyDone(jobId, zoomLevel, stored));
+        }
+        return CompletableFuture.allOf(results.toArray(CompletableFuture[]::new));
+    }
+
+    private static CompletableFuture<Void> notifyDone(String jobId, double zoomLevel, CompletableFuture<String> stored) {
+        return stored.thenCompose(downloadUrl -> timed("notify",
+                        () -> JobNotifier.notifyJobDoneAsync(jobId, zoomLevel, downloadUrl))
+                .exceptionally(e -> {
+                    // The result is already stored, so failing the job would not help
+                    logger.error("Could not notify C01 about job {}: {}", jobId, e.getMessage(), e);
+                    return null;
+                }));
+    }
+
+    /**
+     * Zooms the {@code viewport} part of an image on the zoom servers. {@code source} holds the viewport's
+     * source columns and rows and {@code target} its output; each strip is sent as a view of the source
+     * rows (with its halo) and lands directly in {@code target}.
+     */
+    private static CompletableFuture<Void> zoomInto(BmpView source, Viewport viewport, BmpView target,
+                                                    String kernel, StripExecutor.Scope scope) {
+        int sourceHeight = viewport.sourceHeight();
+        int targetHeight = viewport.targetHeight();
+        if (RMI_HELPER.strategy() == RmiHelper.DispatchStrategy.ADAPTIVE) {
+            return StripScheduler.plan(RMI_HELPER.availableEndpoints(), sourceHeight, targetHeight,
+                            viewport.targetRowStart(), viewport.targetRowEnd(),
+                            stripCount(source.length()), STEAL_FRACTION, STEAL_STRIPS_PER_SERVER)
+                    .run((endpoint, strip) -> zoomStrip(endpoint, source, viewport, target, strip, kernel, scope),
+                            scope);
+        }
+        // Fan the strips out over the RMI endpoints, within the job's share of the strip executor
+        List<StripPlanner.Strip> plan = StripPlanner.plan(sourceHeight, targetHeight,
+                viewport.targetRowStart(), viewport.targetRowEnd(), stripCount(source.length()));
+        return CompletableFuture.allOf(plan.stream()
+                .map(strip -> CompletableFuture.runAsync(
+                        () -> zoomStrip(null, source, viewport, target, strip, kernel, scope), scope))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Stores the tiles of {@code level}, held in {@code image}, while the level below is zoomed out of it,
+     * and so on down to level 0. Each level image is closed once both are done with it.
+     */
+    private static CompletableFuture<Void> storeLevels(TilePyramid pyramid, int level, BmpView image, String outputId,
+                                                       StripExecutor.Scope scope) {
+        CompletableFuture<Void> stored = TileStore.putLevel(outputId, pyramid, level, image, scope);
+        if (level == 0) {
+            return stored.whenComplete((ignored, error) -> image.close());
+        }
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        BmpView below;
+        try {
+            below = BmpView.allocate(pyramid.levelWidth(level - 1), pyramid.levelHeight(level - 1));
+        } catch (IOException | RuntimeException e) {
+            return stored.whenComplete((ignored, error) -> image.close())
+                    .thenCompose(ignored -> CompletableFuture.failedFuture(e));
+        }
+        Viewport halved = Viewport.whole(image.width(), image.height(), below.width(), below.height());
+        return CompletableFuture.allOf(stored, zoomInto(image, halved, below, TILE_KERNEL, scope))
+                .whenComplete((ignored, error) -> {
+                    image.close();
+                    if (error != null) {
+                        below.close();
+                    }
+                })
+                .thenCompose(ignored -> storeLevels(pyramid, level - 1, below, outputId, scope));
+    }
+
+    private static Metrics.Timer stage(String stage) {
+        return Metrics.timer("zoom_stage_seconds", "Time spent per stage of a zoom job", "stage", stage);
+    }
+
+    private static <T> CompletableFuture<T> timed(String stage, Supplier<CompletableFuture<T>> step) {
+        long start = System.nanoTime();
+        return step.get().whenComplete((result, error) -> stage(stage).recordSince(start));
+    }
+
+    private static void countJob(String outcome) {
+        Metrics.counter("zoom_jobs_total", "Zoom jobs by outcome", "outcome", outcome).inc();
+    }
 
-            if (response.statusCode() == 200) {
+    /**
+     * Time the job spent in the broker, from the producer's send timestamp (so across the C01 and C03 clocks).
+     */
+    private static void recordQueueWait(Message message) {
+        try {
+            long sent = message.getJMSTimestamp();
+            if (sent > 0) {
+                stage("queue").record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - sent)));
+            }
+        } catch (JMSException e) {
+            logger.debug("No JMS timestamp: {}", e.getMessage());
+        }
+    }
+
+    private static int deliveryCount(Message message) {
+        try {
+            return message.propertyExists("JMSXDeliveryCount") ? message.getIntProperty("JMSXDeliveryCount") : 1;
+        } catch (JMSException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Zooms one strip of the viewport. Strip rows count in the whole image, so they are shifted by the
+     * viewport's first source and target rows to index {@code source} and {@code target}.
+     */
+    private static void zoomStrip(ZoomEndpoint endpoint, BmpView source, Viewport viewport, BmpView target,
+                                  StripPlanner.Strip strip, String kernel, StripExecutor.Scope scope) {
+        scope.checkDeadline();
+        String jobId = scope.jobId();
+        StripRequest request = viewport.coversAllColumns()
+                ? new StripRequest(kernel, viewport.sourceHeight(), strip.sourceRowStart(),
+                        viewport.targetWidth(), viewport.targetHeight(), strip.targetRowStart(), strip.targetRowEnd(),
+                        jobId)
+                : new StripRequest(kernel, viewport.sourceHeight(), strip.sourceRowStart(),
+                        viewport.targetWidth(), viewport.targetHeight(), strip.targetRowStart(), strip.targetRowEnd(),
+                        viewport.sourceWidth(), viewport.sourceColumnStart(),
+                        viewport.targetColumnStart(), viewport.targetColumnEnd(), jobId);
+        int sourceRowStart = strip.sourceRowStart() - viewport.sourceRowStart();
+        int sourceRowEnd = strip.sourceRowEnd() - viewport.sourceRowStart();
+        int targetRowStart = strip.targetRowStart() - viewport.targetRowStart();
+        int targetRowEnd = strip.targetRowEnd() - viewport.targetRowStart();
+
+        ByteBuffer sourceRows = source.rows(sourceRowStart, sourceRowEnd);
+        RMI_BYTES_SENT.add(sourceRows.remaining());
+        long start = System.nanoTime();
+        if (sourceRows.remaining() > STREAM_THRESHOLD_BYTES) {
+            // Streamed rows are written into the final image as they arrive, so there is no separate combine
+            ByteBuffer targetRows = target.rows(targetRowStart, targetRowEnd);
+            RMI_HELPER.streamStrip(endpoint, sourceRows, source.stride(), source.width(), request,
+                    targetRows, target.stride(), STREAM_CHUNK_BYTES);
+            stage("rmi_stream").recordSince(start);
+            RMI_BYTES_RECEIVED.add(targetRows.capacity());
+            return;
+        }
+
+        // The zoomed rows are copied or decoded straight into the final image
+        ByteBuffer targetRows = target.rows(targetRowStart, targetRowEnd);
+        RMI_HELPER.zoomStrip(endpoint, new BmpStrip(source.stripHeader(sourceRowEnd - sourceRowStart), sourceRows),
+                source.stride(), request, targetRows);
+        stage("rmi_strip").recordSince(start);
+        RMI_BYTES_RECEIVED.add(targetRows.capacity());
+    }
+
+    /**
+     * Zooms one band of source rows into the strips of every output it feeds, with a single call.
+     */
+    private static void zoomBatch(BmpView source, List<BmpView> outputs, StripPlanner.Batch batch,
+                                  String kernel, StripExecutor.Scope scope) {
+        scope.checkDeadline();
+        String jobId = scope.jobId();
+        ByteBuffer sourceRows = source.rows(batch.sourceRowStart(), batch.sourceRowEnd());
+        if (sourceRows.remaining() > STREAM_THRESHOLD_BYTES) {
+            // Too large for one call, so each output streams the rows it needs as a single zoom would
+            for (StripPlanner.LevelStrip output : batch.outputs()) {
+                BmpView target = outputs.get(output.level());
+                Viewport viewport = Viewport.whole(source.width(), source.height(), target.width(), target.height());
+                zoomStrip(null, source, viewport, target, output.strip(), kernel, scope);
+            }
+            return;
+        }
+
+        int count = batch.outputs().size();
+        StripRequest[] requests = new StripRequest[count];
+        ByteBuffer[] targetRows = new ByteBuffer[count];
+        long receivedBytes = 0;
+        for (int i = 0; i < count; i++) {
+            StripPlanner.LevelStrip output = batch.outputs().get(i);
+            StripPlanner.Strip strip = output.strip();
+            BmpView target = outputs.get(output.level());
+            requests[i] = new StripRequest(kernel, source.height(), batch.sourceRowStart(), target.width(),
+                    target.height(), strip.targetRowStart(), strip.targetRowEnd(), jobId);
+            targetRows[i] = target.rows(strip.targetRowStart(), strip.targetRowEnd());
+            receivedBytes += targetRows[i].remaining();
+        }
+
+        RMI_BYTES_SENT.add(sourceRows.remaining());
+        long start = System.nanoTime();
+        RMI_HELPER.zoomStrips(null,
+                new BmpStrip(source.stripHeader(batch.sourceRowEnd() - batch.sourceRowStart()), sourceRows),
+                source.stride(), requests, targetRows);
+        stage("rmi_batch").recordSince(start);
+        RMI_BYTES_RECEIVED.add(receivedBytes);
+    }
+
+    private static int targetSize(int sourceSize, double zoomLevel) {
+        return Math.max(1, (int) Math.round(sourceSize * zoomLevel));
+    }
+
+    private static int stripCount(long imageBytes) {
+        if (STRIP_COUNT > 0) {
+            return STRIP_COUNT;
+        }
+        long bySize = (imageBytes + TARGET_STRIP_BYTES - 1) / TARGET_STRIP_BYTES;
+        return (int) Math.max(RMI_HELPER.endpointCount(), bySize);
+    }
+
+    private static CompletableFuture<String> uploadToNodeServer(BmpView image, String jobId,
+                                                                StripExecutor.Scope scope) {
+        BYTES_OUT.add(image.length());
+        HttpRequest request;
+        try {
+            request = scope.bound(HttpRequest.newBuilder()
+                            .uri(URI.create(C06_IMAGE_UPLOAD_URL))
+                            .header("Content-Type", "application/octet-stream")
+                            .header("jobId", jobId)
+                            .POST(bodyOf(image)))
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return HttpClients.SHARED.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new UncheckedIOException(new IOException(
+                        "Upload failed (" + response.statusCode() + "): " + response.body()));
+            }
+            try {
                 return mapper.readTree(response.body()).get("downloadUrl").asText();
-            } else {
-                logger.error("Upload failed ({}): {}", response.statusCode(), response.body());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } catch (Exception e) {
-            logger.error("Upload error: {}", e.getMessage(), e);
+        });
+    }
+
+    /**
+     * Streams a mapped image from its spool file and a heap image from its backing array, without copying either.
+     */
+    private static HttpRequest.BodyPublisher bodyOf(BmpView image) throws FileNotFoundException {
+        if (image.file() != null) {
+            image.force();
+            return HttpRequest.BodyPublishers.ofFile(image.file());
         }
-        return null;
+        ByteBuffer buffer = image.buffer();
+        return HttpRequest.BodyPublishers.ofByteArray(buffer.array(), buffer.arrayOffset(), buffer.limit());
     }
 }
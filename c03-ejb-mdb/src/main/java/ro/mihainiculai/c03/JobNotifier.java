@@ -1,16 +1,25 @@
 package ro.mihainiculai.c03;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class JobNotifier {
     private static final Logger logger = LoggerFactory.getLogger(JobNotifier.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Lets the receiving side attribute a request to its job without parsing the body
+    public static final String TRACE_HEADER = "X-Job-Id";
 
     private static final String C01_NOTIFY_URL = System.getenv().getOrDefault(
             "C01_NOTIFY_URL",
@@ -21,35 +30,53 @@ public class JobNotifier {
             "http://0.0.0.0:8081/api/notifyJobDone/"
     );
 
-    public static void notifyJobDone(String jobId, String downloadUrl)
-            throws IOException, InterruptedException {
+    /**
+     * Tells C01 that the result of a job for {@code zoomLevel} is done; a job with several zoom levels
+     * sends one notification per level. The returned future fails if C01 could not be reached or did not
+     * answer with 200.
+     */
+    public static CompletableFuture<Void> notifyJobDoneAsync(String jobId, double zoomLevel, String downloadUrl) {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("jobId", jobId);
+        body.put("zoomLevel", Double.toString(zoomLevel));
+        body.put("downloadUrl", C06_DOWNLOAD_URL_PREFIX + downloadUrl);
+        return post(jobId, body).thenRun(() -> logger.info("Notified C01 that jobId={} is done at zoom {}!",
+                jobId, zoomLevel));
+    }
+
+    /**
+     * Tells C01 that a job failed for good, so it can release the job and tell the waiting client instead
+     * of letting it time out.
+     */
+    public static CompletableFuture<Void> notifyJobFailedAsync(String jobId, String error) {
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("jobId", jobId);
+        body.put("error", error != null ? error : "Processing failed");
+        return post(jobId, body).thenRun(() -> logger.info("Notified C01 that jobId={} failed", jobId));
+    }
 
-        HttpClient httpClient = HttpClient.newHttpClient();
-        String jsonBody = String.format(
-                "{\"jobId\":\"%s\",\"downloadUrl\":\"%s\"}",
-                jobId,
-                C06_DOWNLOAD_URL_PREFIX + downloadUrl
-        );
+    private static CompletableFuture<Void> post(String jobId, Map<String, String> body) {
+        String jsonBody;
+        try {
+            jsonBody = mapper.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
         HttpRequest httpRequest = HttpRequest.newBuilder()
                 .uri(URI.create(C01_NOTIFY_URL))
                 .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
                 .header("Content-Type", "application/json")
+                .header(TRACE_HEADER, jobId)
                 .build();
 
-        HttpResponse<String> httpResponse = httpClient.send(
-                httpRequest,
-                HttpResponse.BodyHandlers.ofString()
-        );
-
-        if (httpResponse.statusCode() == 200) {
-            logger.info("Notified C01 that jobId={} is done!", jobId);
-        } else {
-            logger.error(
-                    "Failed to notify C01. Status={}, body={}",
-                    httpResponse.statusCode(),
-                    httpResponse.body()
-            );
-        }
+        return HttpClients.SHARED.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+                .thenAccept(httpResponse -> {
+                    if (httpResponse.statusCode() != 200) {
+                        throw new UncheckedIOException(new IOException(String.format(
+                                "C01 answered %d for jobId=%s: %s",
+                                httpResponse.statusCode(), jobId, httpResponse.body())));
+                    }
+                });
     }
 }
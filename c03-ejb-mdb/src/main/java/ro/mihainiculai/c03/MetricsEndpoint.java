@@ -0,0 +1,45 @@
+package ro.mihainiculai.c03;
+
+import com.sun.net.httpserver.HttpServer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
+
+import java.io.IOException;
+
+/**
+ * Serves the MDB's metrics on {@code http://<host>:ZOOM_METRICS_PORT/metrics} for as long as the
+ * application is deployed. The module has no web tier, so a small JDK HTTP server is used.
+ */
+@Singleton
+@Startup
+public class MetricsEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private static final int METRICS_PORT = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_METRICS_PORT", "9404"));
+
+    private HttpServer server;
+
+    @PostConstruct
+    public void start() {
+        try {
+            server = Metrics.startHttpServer(METRICS_PORT);
+            logger.info("Metrics available on port {}", METRICS_PORT);
+        } catch (IOException e) {
+            // Metrics are not worth failing the deployment over
+            logger.error("Could not start the metrics endpoint on port {}: {}", METRICS_PORT, e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
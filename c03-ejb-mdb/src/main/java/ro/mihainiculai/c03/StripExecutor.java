@@ -0,0 +1,191 @@
+package ro.mihainiculai.c03;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
+
+import java.lang.reflect.Method;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the strips of zoom jobs, whose threads spend nearly all their time blocked on RMI calls. By default
+ * every strip gets a virtual thread, so the strips of concurrent jobs wait for the zoom servers side by side
+ * instead of queueing for a few pool threads. {@code ZOOM_STRIP_THREADS=platform}, or a runtime without
+ * virtual threads, runs them on a fixed pool of {@code RMI_EXECUTOR_THREADS} threads instead.
+ * <p>
+ * The zoom servers themselves are bounded by the call limit of each {@link ro.mihainiculai.rmi.ZoomEndpoint},
+ * and each job by the {@link Scope} it runs its strips in: at most {@code ZOOM_JOB_MAX_CONCURRENT_STRIPS} at a
+ * time, and none started after {@code ZOOM_JOB_DEADLINE_MS}.
+ */
+public final class StripExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(StripExecutor.class);
+
+    private final ExecutorService executor;
+    private final int maxConcurrentStrips;
+    private final long deadlineNanos;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private StripExecutor(ExecutorService executor, int maxConcurrentStrips, long deadlineMillis) {
+        this.executor = executor;
+        this.maxConcurrentStrips = maxConcurrentStrips;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    /**
+     * Builds the executor from the environment; the defaults let a single job use as many threads as the
+     * fixed pool it replaces had ({@code 2} per zoom server) and give it as long as C01 waits for it.
+     */
+    public static StripExecutor fromEnvironment(int endpointCount) {
+        String defaultThreads = String.valueOf(Math.max(2, endpointCount * 2));
+        String mode = System.getenv().getOrDefault("ZOOM_STRIP_THREADS", "virtual");
+        int poolThreads = Integer.parseInt(System.getenv().getOrDefault("RMI_EXECUTOR_THREADS", defaultThreads));
+        int maxConcurrentStrips = Integer.parseInt(
+                System.getenv().getOrDefault("ZOOM_JOB_MAX_CONCURRENT_STRIPS", defaultThreads));
+        long deadlineMillis = Long.parseLong(System.getenv().getOrDefault("ZOOM_JOB_DEADLINE_MS", "600000"));
+
+        Optional<ExecutorService> virtual = mode.equalsIgnoreCase("platform") ? Optional.empty() : newVirtualThreadExecutor();
+        ExecutorService executor = virtual.orElseGet(() -> Executors.newFixedThreadPool(poolThreads));
+        logger.info("Strips run on {} ({} per job at most, deadline {} ms)",
+                virtual.isPresent() ? "virtual threads" : poolThreads + " platform threads",
+                maxConcurrentStrips, deadlineMillis);
+
+        StripExecutor stripExecutor = new StripExecutor(executor, Math.max(1, maxConcurrentStrips), deadlineMillis);
+        stripExecutor.registerGauges(virtual.isPresent() ? 0 : poolThreads);
+        return stripExecutor;
+    }
+
+    /**
+     * An executor that starts a virtual thread per task, or empty on a runtime without virtual threads.
+     * C03 is compiled for Java 17 and runs on 21, so the factory is looked up by reflection.
+     */
+    static Optional<ExecutorService> newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return Optional.of((ExecutorService) factory.invoke(null));
+        } catch (NoSuchMethodException e) {
+            logger.info("No virtual threads on Java {}", Runtime.version());
+            return Optional.empty();
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Could not create a virtual thread executor: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Opens the scope the strips of one job run in. The deadline counts from {@code startNanos}, when the
+     * job was received.
+     */
+    public Scope forJob(String jobId, long startNanos) {
+        return new Scope(jobId, deadlineNanos > 0 ? startNanos + deadlineNanos : 0);
+    }
+
+    private void registerGauges(int poolThreads) {
+        if (poolThreads > 0) {
+            Metrics.gauge("zoom_rmi_executor_threads", "Size of the strip executor", () -> poolThreads);
+        }
+        Metrics.gauge("zoom_rmi_executor_active_threads", "Strips running, mostly blocked in an RMI call",
+                running::get);
+        Metrics.gauge("zoom_rmi_executor_queued_strips", "Strips waiting for their job's limit or a thread",
+                () -> waiting.get() + (executor instanceof ThreadPoolExecutor pool ? pool.getQueue().size() : 0));
+    }
+
+    /**
+     * The strips of one job. Tasks beyond the job's limit wait in order for one of its running strips to
+     * finish, so a large job cannot take every zoom server call from the jobs next to it.
+     */
+    public final class Scope implements Executor {
+        private final String jobId;
+        private final long deadline;
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+        private int active;
+
+        private Scope(String jobId, long deadline) {
+            this.jobId = jobId;
+            this.deadline = deadline;
+        }
+
+        public String jobId() {
+            return jobId;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (active >= maxConcurrentStrips) {
+                    pending.add(task);
+                    waiting.incrementAndGet();
+                    return;
+                }
+                active++;
+            }
+            submit(task);
+        }
+
+        private void submit(Runnable task) {
+            try {
+                executor.execute(() -> {
+                    running.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        next();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                next();
+                throw e;
+            }
+        }
+
+        private void next() {
+            Runnable task;
+            synchronized (this) {
+                task = pending.poll();
+                if (task == null) {
+                    active--;
+                    return;
+                }
+            }
+            waiting.decrementAndGet();
+            submit(task);
+        }
+
+        /**
+         * Fails a strip that is about to start after the job's deadline. Calls already on their way to a zoom
+         * server cannot be taken back, so the deadline only stops the strips that have not started yet.
+         *
+         * @throws CompletionException with a {@link TimeoutException} as cause once the deadline has passed
+         */
+        public void checkDeadline() {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new CompletionException(new TimeoutException("Job " + jobId + " missed its deadline"));
+            }
+        }
+
+        /**
+         * Limits a request to C06 to the time left until the job's deadline.
+         */
+        public HttpRequest.Builder bound(HttpRequest.Builder request) {
+            if (deadline == 0) {
+                return request;
+            }
+            long left = Math.max(TimeUnit.MILLISECONDS.toNanos(1), deadline - System.nanoTime());
+            return request.timeout(Duration.ofNanos(left));
+        }
+    }
+}
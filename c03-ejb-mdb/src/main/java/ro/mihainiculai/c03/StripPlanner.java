@@ -0,0 +1,126 @@
+package ro.mihainiculai.c03;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the output rows of a zoom job into strips and works out which source rows each strip
+ * needs. Rows are counted in BMP storage order (bottom-up), matching the pixel array.
+ */
+public class StripPlanner {
+    /**
+     * Largest kernel radius offered by the zoom servers (Lanczos, a = 3). Using it for every kernel
+     * costs a few extra halo rows per strip but never leaves a strip short of source rows.
+     */
+    private static final double MAX_KERNEL_SUPPORT = 3.0;
+
+    public static List<Strip> plan(int sourceHeight, int targetHeight, int stripCount) {
+        return plan(sourceHeight, targetHeight, 0, targetHeight, stripCount);
+    }
+
+    /**
+     * Splits only the output rows {@code [targetRowFrom, targetRowTo)} into strips, e.g. for a crop.
+     */
+    public static List<Strip> plan(int sourceHeight, int targetHeight, int targetRowFrom, int targetRowTo,
+                                   int stripCount) {
+        int rows = targetRowTo - targetRowFrom;
+        int count = Math.max(1, Math.min(stripCount, rows));
+        int[] boundaries = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            boundaries[i] = targetRowFrom + (int) ((long) rows * i / count);
+        }
+        return plan(sourceHeight, targetHeight, boundaries);
+    }
+
+    /**
+     * Plans one strip per range of output rows {@code [boundaries[i], boundaries[i + 1])}; the boundaries
+     * are ascending, between 0 and {@code targetHeight}, and empty ranges are skipped.
+     */
+    public static List<Strip> plan(int sourceHeight, int targetHeight, int[] boundaries) {
+        double scale = (double) targetHeight / sourceHeight;
+        double support = MAX_KERNEL_SUPPORT * Math.max(1.0, 1.0 / scale);
+
+        List<Strip> strips = new ArrayList<>(boundaries.length - 1);
+        for (int i = 0; i + 1 < boundaries.length; i++) {
+            if (boundaries[i + 1] > boundaries[i]) {
+                strips.add(forTargetRows(sourceHeight, scale, support, boundaries[i], boundaries[i + 1]));
+            }
+        }
+        return strips;
+    }
+
+    /**
+     * The source pixels (including halo) that output pixels {@code [targetStart, targetEnd)} depend on along
+     * one axis. The same arithmetic holds for columns, whose ranges are then read from the row fields.
+     */
+    public static Strip span(int sourceSize, int targetSize, int targetStart, int targetEnd) {
+        double scale = (double) targetSize / sourceSize;
+        return forTargetRows(sourceSize, scale, MAX_KERNEL_SUPPORT * Math.max(1.0, 1.0 / scale),
+                targetStart, targetEnd);
+    }
+
+    private static Strip forTargetRows(int sourceHeight, double scale, double support, int targetStart, int targetEnd) {
+        double firstCenter = (targetStart + 0.5) / scale;
+        double lastCenter = (targetEnd - 0.5) / scale;
+
+        int sourceStart = Math.max(0, (int) Math.floor(firstCenter - support) - 1);
+        int sourceEnd = Math.min(sourceHeight, (int) Math.ceil(lastCenter + support) + 1);
+        return new Strip(sourceStart, sourceEnd, targetStart, targetEnd);
+    }
+
+    /**
+     * Plans strips for several output heights of the same source at once. The source is cut into
+     * {@code stripCount} bands and every output gets the rows that fall within the same band, so one batch
+     * of source rows serves all outputs and is sent to a zoom server only once.
+     *
+     * @return one batch per band, in order; outputs whose share of a band is empty are left out
+     */
+    public static List<Batch> planLevels(int sourceHeight, int[] targetHeights, int stripCount) {
+        int count = Math.max(1, Math.min(stripCount, sourceHeight));
+        List<Batch> batches = new ArrayList<>(count);
+        for (int band = 0; band < count; band++) {
+            int bandStart = (int) ((long) sourceHeight * band / count);
+            int bandEnd = (int) ((long) sourceHeight * (band + 1) / count);
+
+            List<LevelStrip> outputs = new ArrayList<>(targetHeights.length);
+            int sourceStart = Integer.MAX_VALUE;
+            int sourceEnd = 0;
+            for (int level = 0; level < targetHeights.length; level++) {
+                int targetHeight = targetHeights[level];
+                int targetStart = (int) ((long) bandStart * targetHeight / sourceHeight);
+                int targetEnd = band == count - 1 ? targetHeight : (int) ((long) bandEnd * targetHeight / sourceHeight);
+                if (targetEnd <= targetStart) {
+                    continue;
+                }
+                Strip strip = span(sourceHeight, targetHeight, targetStart, targetEnd);
+                outputs.add(new LevelStrip(level, strip));
+                sourceStart = Math.min(sourceStart, strip.sourceRowStart());
+                sourceEnd = Math.max(sourceEnd, strip.sourceRowEnd());
+            }
+            if (!outputs.isEmpty()) {
+                batches.add(new Batch(sourceStart, sourceEnd, List.copyOf(outputs)));
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Source rows {@code [sourceRowStart, sourceRowEnd)} (including halo) produce output rows
+     * {@code [targetRowStart, targetRowEnd)}.
+     */
+    public record Strip(int sourceRowStart, int sourceRowEnd, int targetRowStart, int targetRowEnd) {
+    }
+
+    /**
+     * Source rows {@code [sourceRowStart, sourceRowEnd)} are sent once and zoomed into every strip of
+     * {@code outputs}.
+     */
+    public record Batch(int sourceRowStart, int sourceRowEnd, List<LevelStrip> outputs) {
+    }
+
+    /**
+     * A strip of the output at index {@code level} of the planned target heights.
+     */
+    public record LevelStrip(int level, Strip strip) {
+    }
+}
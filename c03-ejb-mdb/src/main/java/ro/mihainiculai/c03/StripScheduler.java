@@ -0,0 +1,195 @@
+package ro.mihainiculai.c03;
+
+import ro.mihainiculai.metrics.Metrics;
+import ro.mihainiculai.rmi.ZoomEndpoint;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs a job's strips with one worker per zoom server, for the adaptive dispatch.
+ * <p>
+ * Most output rows are shared out up front in proportion to each server's measured throughput, so a
+ * slower server gets less to do rather than holding the whole job up. The remaining rows are cut into
+ * small strips that go to whichever worker runs out of its share first, and a worker with nothing left
+ * takes not yet started strips from the back of another server's share, which covers for estimates
+ * that are out of date.
+ */
+final class StripScheduler {
+    // A server never gets less than this fraction of the average share, so its estimate keeps being refreshed
+    private static final double MIN_RELATIVE_SHARE = 0.1;
+
+    private static final Metrics.Counter STOLEN_STRIPS = Metrics.counter(
+            "zoom_stolen_strips_total", "Strips taken from another zoom server's share");
+
+    private final List<ZoomEndpoint> endpoints;
+    private final List<Deque<StripPlanner.Strip>> shares;
+    private final Queue<StripPlanner.Strip> tail;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    private StripScheduler(List<ZoomEndpoint> endpoints, List<Deque<StripPlanner.Strip>> shares,
+                           Queue<StripPlanner.Strip> tail) {
+        this.endpoints = endpoints;
+        this.shares = shares;
+        this.tail = tail;
+    }
+
+    /**
+     * Plans the strips producing output rows {@code [targetRowFrom, targetRowTo)} of one job.
+     *
+     * @param stripCount           how many strips the shares are cut into overall, so that no strip gets
+     *                             much larger than with the even split
+     * @param tailFraction         fraction of the output rows kept back for whichever server is idle first
+     * @param tailStripsPerServer  how many strips per server those rows are cut into
+     */
+    static StripScheduler plan(List<ZoomEndpoint> endpoints, int sourceHeight, int targetHeight,
+                               int targetRowFrom, int targetRowTo,
+                               int stripCount, double tailFraction, int tailStripsPerServer) {
+        int servers = endpoints.size();
+        double[] weights = weights(endpoints);
+        int rows = targetRowTo - targetRowFrom;
+        int tailRows = servers > 1 ? (int) Math.round(rows * tailFraction) : 0;
+        int sharedRows = rows - tailRows;
+
+        // Boundaries of each server's share pieces, then of the tail strips, in one ascending list,
+        // relative to targetRowFrom
+        List<Integer> boundaries = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        boundaries.add(0);
+        double cumulative = 0;
+        for (int server = 0; server < servers; server++) {
+            int shareStart = boundaries.get(boundaries.size() - 1);
+            cumulative += weights[server];
+            int shareEnd = server == servers - 1 ? sharedRows : (int) Math.round(sharedRows * cumulative);
+            int pieces = Math.max(1, (int) Math.ceil((double) stripCount * (shareEnd - shareStart) / rows));
+            for (int piece = 1; piece <= pieces; piece++) {
+                boundaries.add(shareStart + (int) ((long) (shareEnd - shareStart) * piece / pieces));
+                owners.add(server);
+            }
+        }
+        int tailStrips = Math.max(1, servers * tailStripsPerServer);
+        for (int piece = 1; piece <= tailStrips; piece++) {
+            boundaries.add(sharedRows + (int) ((long) tailRows * piece / tailStrips));
+            owners.add(-1);
+        }
+
+        List<Deque<StripPlanner.Strip>> shares = new ArrayList<>(servers);
+        for (int server = 0; server < servers; server++) {
+            shares.add(new ConcurrentLinkedDeque<>());
+        }
+        Queue<StripPlanner.Strip> tail = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < owners.size(); i++) {
+            int start = targetRowFrom + boundaries.get(i);
+            int end = targetRowFrom + boundaries.get(i + 1);
+            if (end <= start) {
+                continue;
+            }
+            StripPlanner.Strip strip = StripPlanner.plan(sourceHeight, targetHeight, new int[]{start, end}).get(0);
+            if (owners.get(i) < 0) {
+                tail.add(strip);
+            } else {
+                shares.get(owners.get(i)).add(strip);
+            }
+        }
+        return new StripScheduler(List.copyOf(endpoints), shares, tail);
+    }
+
+    /**
+     * Normalised shares from the throughput estimates. Servers without an estimate yet are counted at the
+     * average of the others, or all alike when none has one.
+     */
+    private static double[] weights(List<ZoomEndpoint> endpoints) {
+        double[] rates = new double[endpoints.size()];
+        double known = 0;
+        int knownCount = 0;
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = endpoints.get(i).pixelsPerSecond();
+            if (rates[i] > 0) {
+                known += rates[i];
+                knownCount++;
+            }
+        }
+        double average = knownCount > 0 ? known / knownCount : 1;
+
+        double total = 0;
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = Math.max(rates[i] > 0 ? rates[i] : average, average * MIN_RELATIVE_SHARE);
+            total += rates[i];
+        }
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] /= total;
+        }
+        return rates;
+    }
+
+    /**
+     * Starts one worker per server on {@code executor}. Each worker calls {@code zoom} with its server and a
+     * strip until no strip is left; after a failure the workers stop taking new strips and the returned
+     * future fails.
+     */
+    CompletableFuture<Void> run(BiConsumer<ZoomEndpoint, StripPlanner.Strip> zoom, Executor executor) {
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[endpoints.size()];
+        for (int server = 0; server < workers.length; server++) {
+            int own = server;
+            workers[server] = CompletableFuture.runAsync(() -> work(own, zoom), executor);
+        }
+        return CompletableFuture.allOf(workers);
+    }
+
+    private void work(int server, BiConsumer<ZoomEndpoint, StripPlanner.Strip> zoom) {
+        ZoomEndpoint endpoint = endpoints.get(server);
+        StripPlanner.Strip strip;
+        while (!failed.get() && (strip = next(server)) != null) {
+            try {
+                zoom.accept(endpoint, strip);
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            }
+        }
+    }
+
+    private StripPlanner.Strip next(int server) {
+        StripPlanner.Strip strip = shares.get(server).pollFirst();
+        if (strip == null) {
+            strip = tail.poll();
+        }
+        if (strip == null) {
+            strip = steal(server);
+        }
+        return strip;
+    }
+
+    /**
+     * Takes the last strip of the share with the most strips left, retrying while other workers race for it.
+     */
+    private StripPlanner.Strip steal(int thief) {
+        while (true) {
+            Deque<StripPlanner.Strip> victim = null;
+            int most = 0;
+            for (int server = 0; server < shares.size(); server++) {
+                int left = shares.get(server).size();
+                if (server != thief && left > most) {
+                    victim = shares.get(server);
+                    most = left;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            StripPlanner.Strip strip = victim.pollLast();
+            if (strip != null) {
+                STOLEN_STRIPS.inc();
+                return strip;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ro.mihainiculai.c03;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a tile pyramid, following the Deep Zoom convention: level {@link #maxLevel()} is the full
+ * zoomed image, every level below it halves both dimensions (rounding up), and level 0 is a single pixel.
+ * Each level is cut into {@code tileSize} square tiles, the last row and column being smaller; tile
+ * coordinates count from the top-left corner.
+ */
+public record TilePyramid(int width, int height, int tileSize) {
+    public TilePyramid {
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid pyramid " + width + "x" + height + " / " + tileSize);
+        }
+    }
+
+    public int maxLevel() {
+        int level = 0;
+        while ((1L << level) < Math.max(width, height)) {
+            level++;
+        }
+        return level;
+    }
+
+    public int levelWidth(int level) {
+        return scaled(width, level);
+    }
+
+    public int levelHeight(int level) {
+        return scaled(height, level);
+    }
+
+    public int columns(int level) {
+        return (levelWidth(level) + tileSize - 1) / tileSize;
+    }
+
+    public int rows(int level) {
+        return (levelHeight(level) + tileSize - 1) / tileSize;
+    }
+
+    private int scaled(int size, int level) {
+        int shift = maxLevel() - level;
+        return (int) ((size + (1L << shift) - 1) >> shift);
+    }
+
+    /**
+     * Cuts tile row {@code row} (counted from the top) out of {@code image}, which holds the whole level,
+     * and returns its tiles left to right as consecutive 24-bit BMP files. Each file starts with its own
+     * size, so the receiver can split them without further framing.
+     */
+    public byte[] tileRow(BmpView image, int row) {
+        int imageHeight = image.height();
+        int tileHeight = Math.min(tileSize, imageHeight - row * tileSize);
+        // The tile's bottom-up rows are a contiguous band of the bottom-up image
+        int bandStart = imageHeight - row * tileSize - tileHeight;
+        ByteBuffer band = image.rows(bandStart, bandStart + tileHeight);
+
+        int columns = (image.width() + tileSize - 1) / tileSize;
+        int total = 0;
+        for (int column = 0; column < columns; column++) {
+            total += BmpUtils.HEADER_SIZE + BmpUtils.rowSize(tileWidth(image, column)) * tileHeight;
+        }
+
+        byte[] tiles = new byte[total];
+        ByteBuffer out = ByteBuffer.wrap(tiles);
+        for (int column = 0; column < columns; column++) {
+            int tileWidth = tileWidth(image, column);
+            int tileStride = BmpUtils.rowSize(tileWidth);
+            BmpUtils.writeHeader(out.slice(out.position(), BmpUtils.HEADER_SIZE), tileWidth, tileHeight);
+            int pixels = out.position() + BmpUtils.HEADER_SIZE;
+            for (int y = 0; y < tileHeight; y++) {
+                band.get(y * image.stride() + column * tileSize * 3, tiles, pixels + y * tileStride, tileWidth * 3);
+            }
+            out.position(pixels + tileStride * tileHeight);
+        }
+        return tiles;
+    }
+
+    private int tileWidth(BmpView image, int column) {
+        return Math.min(tileSize, image.width() - column * tileSize);
+    }
+}
@@ -0,0 +1,90 @@
+package ro.mihainiculai.c03;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores tile pyramids in C06: the tiles one tile row per request, then the pyramid's description, which
+ * is what the job's download URL points at. Every request is a PUT, so a redelivered job just overwrites
+ * what an earlier attempt stored.
+ */
+public class TileStore {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String C06_TILE_UPLOAD_URL = System.getenv().getOrDefault(
+            "C06_TILE_UPLOAD_URL",
+            "http://0.0.0.0:3001/api/tiles"
+    );
+
+    /**
+     * Uploads every tile of {@code level}, held in full in {@code image}. Rows are cut and sent one after
+     * the other, so only one row of tiles is copied at a time. Every request is bounded by the job's deadline.
+     */
+    public static CompletableFuture<Void> putLevel(String jobId, TilePyramid pyramid, int level, BmpView image,
+                                                   StripExecutor.Scope scope) {
+        CompletableFuture<String> uploads = CompletableFuture.completedFuture(null);
+        for (int row = 0; row < pyramid.rows(level); row++) {
+            int tileRow = row;
+            uploads = uploads.thenCompose(ignored -> put(jobId, "/" + level + "/" + tileRow,
+                    "application/octet-stream",
+                    HttpRequest.BodyPublishers.ofByteArray(pyramid.tileRow(image, tileRow)), scope));
+        }
+        return uploads.thenApply(lastResponse -> null);
+    }
+
+    /**
+     * Stores the pyramid's description once its tiles are in place.
+     *
+     * @return the download URL path of the description
+     */
+    public static CompletableFuture<String> putDescriptor(String jobId, TilePyramid pyramid,
+                                                          StripExecutor.Scope scope) {
+        Map<String, Object> descriptor = new LinkedHashMap<>();
+        descriptor.put("width", pyramid.width());
+        descriptor.put("height", pyramid.height());
+        descriptor.put("tileSize", pyramid.tileSize());
+        descriptor.put("levels", pyramid.maxLevel() + 1);
+        String json;
+        try {
+            json = mapper.writeValueAsString(descriptor);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return put(jobId, "", "application/json", HttpRequest.BodyPublishers.ofString(json), scope)
+                .thenApply(body -> {
+                    try {
+                        return mapper.readTree(body).get("downloadUrl").asText();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private static CompletableFuture<String> put(String jobId, String path, String contentType,
+                                                 HttpRequest.BodyPublisher body, StripExecutor.Scope scope) {
+        HttpRequest request = scope.bound(HttpRequest.newBuilder()
+                        .uri(URI.create(C06_TILE_UPLOAD_URL + "/" + jobId + path))
+                        .header("Content-Type", contentType)
+                        .header(JobNotifier.TRACE_HEADER, jobId)
+                        .PUT(body))
+                .build();
+
+        return HttpClients.SHARED.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new UncheckedIOException(new IOException(String.format(
+                        "Tile upload %s failed (%d): %s", path, response.statusCode(), response.body())));
+            }
+            return response.body();
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package ro.mihainiculai.c03;
+
+/**
+ * The part of a zoom a job produces: output columns {@code [targetColumnStart, targetColumnEnd)} and rows
+ * {@code [targetRowStart, targetRowEnd)} of a {@code targetWidth} x {@code targetHeight} zoom of a
+ * {@code sourceWidth} x {@code sourceHeight} image, together with the source columns and rows (halo
+ * included) they are computed from. Rows are counted in storage order (bottom-up).
+ */
+record Viewport(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                int sourceColumnStart, int sourceColumnEnd, int sourceRowStart, int sourceRowEnd,
+                int targetColumnStart, int targetColumnEnd, int targetRowStart, int targetRowEnd) {
+
+    static Viewport whole(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        return new Viewport(sourceWidth, sourceHeight, targetWidth, targetHeight,
+                0, sourceWidth, 0, sourceHeight, 0, targetWidth, 0, targetHeight);
+    }
+
+    /**
+     * The viewport of a crop, which covers every zoomed pixel the crop rectangle touches.
+     *
+     * @throws IllegalArgumentException if the crop is empty or reaches outside the image
+     */
+    static Viewport crop(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, ZoomJob.Crop crop) {
+        if (crop.x() < 0 || crop.y() < 0 || crop.width() <= 0 || crop.height() <= 0
+                || crop.x() + (long) crop.width() > sourceWidth || crop.y() + (long) crop.height() > sourceHeight) {
+            throw new IllegalArgumentException(String.format(
+                    "Crop %s outside of a %dx%d image", crop, sourceWidth, sourceHeight));
+        }
+
+        double scaleX = (double) targetWidth / sourceWidth;
+        double scaleY = (double) targetHeight / sourceHeight;
+        int columnStart = (int) Math.floor(crop.x() * scaleX);
+        int columnEnd = Math.max(columnStart + 1,
+                Math.min(targetWidth, (int) Math.ceil((crop.x() + crop.width()) * scaleX)));
+        // The crop counts rows from the top
+        int bottom = sourceHeight - crop.y() - crop.height();
+        int rowStart = (int) Math.floor(bottom * scaleY);
+        int rowEnd = Math.max(rowStart + 1, Math.min(targetHeight, (int) Math.ceil((bottom + crop.height()) * scaleY)));
+
+        StripPlanner.Strip columns = StripPlanner.span(sourceWidth, targetWidth, columnStart, columnEnd);
+        StripPlanner.Strip rows = StripPlanner.span(sourceHeight, targetHeight, rowStart, rowEnd);
+        return new Viewport(sourceWidth, sourceHeight, targetWidth, targetHeight,
+                columns.sourceRowStart(), columns.sourceRowEnd(), rows.sourceRowStart(), rows.sourceRowEnd(),
+                columnStart, columnEnd, rowStart, rowEnd);
+    }
+
+    /**
+     * Whether the output spans the full width, so strips can be sent as whole source rows.
+     */
+    boolean coversAllColumns() {
+        return sourceColumnStart == 0 && sourceColumnEnd == sourceWidth
+                && targetColumnStart == 0 && targetColumnEnd == targetWidth;
+    }
+
+    int width() {
+        return targetColumnEnd - targetColumnStart;
+    }
+
+    int height() {
+        return targetRowEnd - targetRowStart;
+    }
+}
@@ -0,0 +1,128 @@
+package ro.mihainiculai.c03;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.jms.BytesMessage;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.TextMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A zoom request read from JMS. The image may be backed by a memory-mapped spool file, so the job must be
+ * closed once it is done.
+ *
+ * @param zoomLevels one or more zoom levels, each producing its own result
+ * @param tileSize   tile edge when the job asks for a tile pyramid, 0 for a single zoomed image
+ * @param crop       part of the image to zoom, or {@code null} for all of it
+ */
+public record ZoomJob(String jobId, List<Double> zoomLevels, String kernel, int tileSize, Crop crop, BmpView image)
+        implements AutoCloseable {
+    public static final String JOB_ID_PROPERTY = "jobId";
+    public static final String ZOOM_LEVEL_PROPERTY = "zoomLevel";
+    // Comma separated; when present it lists every level of the job and zoomLevel holds the first one
+    public static final String ZOOM_LEVELS_PROPERTY = "zoomLevels";
+    public static final String KERNEL_PROPERTY = "kernel";
+    public static final String TILE_SIZE_PROPERTY = "tileSize";
+    public static final String CROP_X_PROPERTY = "cropX";
+    public static final String CROP_Y_PROPERTY = "cropY";
+    public static final String CROP_WIDTH_PROPERTY = "cropWidth";
+    public static final String CROP_HEIGHT_PROPERTY = "cropHeight";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public ZoomJob {
+        if (zoomLevels.isEmpty()) {
+            throw new IllegalArgumentException("A job needs at least one zoom level");
+        }
+    }
+
+    /**
+     * Reads a job from either the binary protocol (metadata in properties, raw BMP as body)
+     * or the legacy JSON text protocol with a Base64 encoded image.
+     *
+     * @return the decoded job, or {@code null} when the message type is not supported
+     */
+    public static ZoomJob fromMessage(Message message) throws JMSException, IOException {
+        if (message instanceof BytesMessage bytesMessage) {
+            return fromBytesMessage(bytesMessage);
+        }
+        if (message instanceof TextMessage textMessage) {
+            return fromTextMessage(textMessage);
+        }
+        return null;
+    }
+
+    private static ZoomJob fromBytesMessage(BytesMessage message) throws JMSException, IOException {
+        String jobId = message.getStringProperty(JOB_ID_PROPERTY);
+        if (jobId == null || !message.propertyExists(ZOOM_LEVEL_PROPERTY)) {
+            throw new IllegalArgumentException("Missing jobId or zoomLevel property");
+        }
+        List<Double> zoomLevels = message.propertyExists(ZOOM_LEVELS_PROPERTY)
+                ? parseLevels(message.getStringProperty(ZOOM_LEVELS_PROPERTY))
+                : List.of(message.getDoubleProperty(ZOOM_LEVEL_PROPERTY));
+        String kernel = message.getStringProperty(KERNEL_PROPERTY);
+        int tileSize = message.propertyExists(TILE_SIZE_PROPERTY) ? message.getIntProperty(TILE_SIZE_PROPERTY) : 0;
+        Crop crop = message.propertyExists(CROP_WIDTH_PROPERTY)
+                ? new Crop(message.getIntProperty(CROP_X_PROPERTY), message.getIntProperty(CROP_Y_PROPERTY),
+                message.getIntProperty(CROP_WIDTH_PROPERTY), message.getIntProperty(CROP_HEIGHT_PROPERTY))
+                : null;
+
+        // Read in chunks so that large bodies go straight into a mapped spool file
+        BmpView image = BmpView.read(message.getBodyLength(), message::readBytes);
+        return new ZoomJob(jobId, zoomLevels, kernel, tileSize, crop, image);
+    }
+
+    private static ZoomJob fromTextMessage(TextMessage message) throws JMSException, IOException {
+        JsonNode jsonNode = mapper.readTree(message.getText());
+
+        String jobId = jsonNode.get("jobId").asText();
+        List<Double> zoomLevels = new ArrayList<>();
+        if (jsonNode.path("zoomLevels").isArray()) {
+            jsonNode.get("zoomLevels").forEach(level -> zoomLevels.add(level.asDouble()));
+        } else {
+            zoomLevels.add(jsonNode.get("zoomLevel").asDouble());
+        }
+        String kernel = jsonNode.hasNonNull("kernel") ? jsonNode.get("kernel").asText() : null;
+        int tileSize = jsonNode.path("tileSize").asInt(0);
+        JsonNode cropNode = jsonNode.path("crop");
+        Crop crop = cropNode.isObject()
+                ? new Crop(cropNode.path("x").asInt(), cropNode.path("y").asInt(),
+                cropNode.path("width").asInt(), cropNode.path("height").asInt())
+                : null;
+        byte[] image = Base64.getDecoder().decode(jsonNode.get("imageBase64").asText());
+        return new ZoomJob(jobId, List.copyOf(zoomLevels), kernel, tileSize, crop, BmpView.wrap(image));
+    }
+
+    private static List<Double> parseLevels(String levels) {
+        return Arrays.stream(levels.split(","))
+                .map(String::trim)
+                .filter(level -> !level.isEmpty())
+                .map(Double::valueOf)
+                .toList();
+    }
+
+    /**
+     * Key the result for {@code zoomLevel} is stored under in C06: the job id itself for a single level,
+     * so that existing download links keep their form, and {@code <jobId>-z<level>} otherwise.
+     */
+    public String outputId(double zoomLevel) {
+        return zoomLevels.size() == 1 ? jobId : jobId + "-z" + zoomLevel;
+    }
+
+    @Override
+    public void close() {
+        image.close();
+    }
+
+    /**
+     * A rectangle of the source image in pixels, counted from its top-left corner.
+     */
+    public record Crop(int x, int y, int width, int height) {
+    }
+}
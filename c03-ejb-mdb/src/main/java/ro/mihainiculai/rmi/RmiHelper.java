@@ -2,37 +2,384 @@ package ro.mihainiculai.rmi;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
 
-import java.rmi.Naming;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RmiHelper {
     private static final Logger logger = LoggerFactory.getLogger(RmiHelper.class);
 
-    private final String c04Url;
-    private final String c05Url;
+    private static final long HEALTH_CHECK_INTERVAL_MS = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_HEALTH_CHECK_INTERVAL_MS", "5000"));
+    // Encoding asked of the zoom servers for strip rows; a server that does not support it gets raw rows
+    private static final PixelEncoding TRANSPORT_ENCODING = PixelEncoding.parse(
+            System.getenv().getOrDefault("ZOOM_TRANSPORT_ENCODING", "identity"));
+    // Smaller strips go raw, as encoding them costs more time than sending the saved bytes would
+    private static final long TRANSPORT_MIN_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_TRANSPORT_MIN_BYTES", String.valueOf(64 * 1024)));
+    // Offset of the pixel array offset field in a BMP file header
+    private static final int PIXEL_OFFSET_FIELD = 10;
 
-    public RmiHelper(String c04Host, String c04Port, String c05Host, String c05Port) {
-        this.c04Url = "rmi://" + c04Host + ":" + c04Port + "/ZOOM-SERVER";
-        this.c05Url = "rmi://" + c05Host + ":" + c05Port + "/ZOOM-SERVER";
+    private static final Metrics.Counter WIRE_BYTES_SENT = Metrics.counter("zoom_rmi_wire_bytes_total",
+            "Strip bytes sent to and received from the zoom servers, after encoding", "direction", "sent");
+    private static final Metrics.Counter WIRE_BYTES_RECEIVED = Metrics.counter("zoom_rmi_wire_bytes_total",
+            "Strip bytes sent to and received from the zoom servers, after encoding", "direction", "received");
+
+    private final List<ZoomEndpoint> endpoints;
+    private final DispatchStrategy strategy;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public RmiHelper(List<ZoomEndpoint> endpoints, DispatchStrategy strategy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one RMI endpoint is required");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.strategy = strategy;
+        for (ZoomEndpoint endpoint : this.endpoints) {
+            Metrics.gauge("zoom_rmi_endpoint_pixels_per_second", "Moving average of each zoom server's throughput",
+                    endpoint::pixelsPerSecond, "endpoint", endpoint.name());
+        }
     }
 
-    public byte[] callC04(byte[] imagePart, double zoomLevel) {
-        try {
-            ZoomImageInterface stub = (ZoomImageInterface) Naming.lookup(c04Url);
-            return stub.zoomImage(imagePart, zoomLevel);
-        } catch (Exception e) {
-            logger.error("Error calling RMI C04: {}", e.getMessage(), e);
+    /**
+     * Builds the helper from {@code ZOOM_RMI_ENDPOINTS} (comma separated {@code host:port} list),
+     * falling back to the C04/C05 host and port variables, and starts the periodic health checks.
+     */
+    public static RmiHelper fromEnvironment() {
+        String endpointList = System.getenv("ZOOM_RMI_ENDPOINTS");
+        List<ZoomEndpoint> endpoints;
+        if (endpointList != null && !endpointList.isBlank()) {
+            endpoints = ZoomEndpoint.parseList(endpointList);
+        } else {
+            endpoints = List.of(
+                    new ZoomEndpoint(
+                            System.getenv().getOrDefault("C04_RMI_HOST", "0.0.0.0"),
+                            System.getenv().getOrDefault("C04_RMI_PORT", "10991")),
+                    new ZoomEndpoint(
+                            System.getenv().getOrDefault("C05_RMI_HOST", "0.0.0.0"),
+                            System.getenv().getOrDefault("C05_RMI_PORT", "10992"))
+            );
+        }
+
+        DispatchStrategy strategy = DispatchStrategy.parse(
+                System.getenv().getOrDefault("ZOOM_DISPATCH", "round-robin"));
+
+        logger.info("Using RMI endpoints {} with {} dispatch and {} transport for strips from {} bytes",
+                endpoints, strategy, TRANSPORT_ENCODING.id(), TRANSPORT_MIN_BYTES);
+        RmiHelper helper = new RmiHelper(endpoints, strategy);
+        helper.startHealthChecks(HEALTH_CHECK_INTERVAL_MS);
+        return helper;
+    }
+
+    /**
+     * Zooms one strip on {@code preferred} while it is available, failing over to the other endpoints
+     * otherwise, and writes the padded output rows straight into {@code targetRows}. Strips from
+     * {@code ZOOM_TRANSPORT_MIN_BYTES} travel in {@code ZOOM_TRANSPORT_ENCODING} both ways when the endpoint
+     * supports it.
+     *
+     * @throws IllegalStateException when no endpoint could process the strip
+     */
+    public void zoomStrip(ZoomEndpoint preferred, BmpStrip strip, int sourceStride, StripRequest request,
+                          ByteBuffer targetRows) {
+        PixelEncoding wanted = transportEncoding(strip.length());
+        execute(preferred, (endpoint, stub) -> {
+            PixelEncoding encoding = endpoint.encodingFor(wanted);
+            if (encoding == PixelEncoding.IDENTITY) {
+                byte[] zoomed = stub.zoomStrip(strip, request);
+                countWireBytes(strip.wireLength(), zoomed.length);
+                putRows(zoomed, targetRows);
+                return null;
+            }
+
+            BmpStrip encodedStrip = strip.encoded(encoding, sourceStride);
+            byte[] zoomed = stub.zoomStrip(encodedStrip, request, encoding.id());
+            countWireBytes(encodedStrip.wireLength(), zoomed.length);
+            decode(encoding, zoomed, targetRows);
             return null;
+        }, outputPixels(request));
+    }
+
+    /**
+     * Zooms one strip to several output sizes in a single call, so the strip is sent and decoded once.
+     * Request {@code i} fills {@code targetRows[i]}; encodings are chosen as for
+     * {@link #zoomStrip(ZoomEndpoint, BmpStrip, int, StripRequest, ByteBuffer)}.
+     */
+    public void zoomStrips(ZoomEndpoint preferred, BmpStrip strip, int sourceStride, StripRequest[] requests,
+                           ByteBuffer[] targetRows) {
+        PixelEncoding wanted = transportEncoding(strip.length());
+        long pixels = 0;
+        for (StripRequest request : requests) {
+            pixels += outputPixels(request);
         }
+
+        execute(preferred, (endpoint, stub) -> {
+            PixelEncoding encoding = endpoint.encodingFor(wanted);
+            BmpStrip sent = strip.encoded(encoding, sourceStride);
+            byte[][] zoomed;
+            try {
+                zoomed = stub.zoomStrips(sent, requests, encoding.id());
+            } catch (ServerException e) {
+                if (!(e.getCause() instanceof UnmarshalException)) {
+                    throw e;
+                }
+                // A server that predates batches gets one call per output size
+                for (int i = 0; i < requests.length; i++) {
+                    byte[] rows = stub.zoomStrip(strip, requests[i]);
+                    countWireBytes(strip.wireLength(), rows.length);
+                    putRows(rows, targetRows[i]);
+                }
+                return null;
+            }
+
+            if (zoomed.length != requests.length) {
+                throw new IllegalStateException(String.format(
+                        "Zoom server returned %d of %d outputs", zoomed.length, requests.length));
+            }
+            long received = 0;
+            for (int i = 0; i < zoomed.length; i++) {
+                received += zoomed[i].length;
+                decode(encoding, zoomed[i], targetRows[i]);
+            }
+            countWireBytes(sent.wireLength(), received);
+            return null;
+        }, pixels);
     }
 
-    public byte[] callC05(byte[] imagePart, double zoomLevel) {
+    /**
+     * Zooms one strip through a strip session, so that neither side has to hold the whole strip at once.
+     * {@code sourceRows} holds the padded source rows starting at {@code request.sourceRowOffset()} and the
+     * zoomed rows are written straight into {@code targetRows}, which covers the requested output rows.
+     * A failed transfer is restarted from scratch on another endpoint; {@code preferred} is tried first as
+     * {@link #zoomStrip(ZoomEndpoint, BmpStrip, int, StripRequest, ByteBuffer)} does. Each pushed and pulled
+     * chunk is encoded on its own, with the same choice of encoding as for a single call.
+     */
+    public void streamStrip(ZoomEndpoint preferred, ByteBuffer sourceRows, int sourceStride, int sourceWidth,
+                            StripRequest request, ByteBuffer targetRows, int targetStride, int chunkBytes) {
+        int rowCount = sourceRows.remaining() / sourceStride;
+        int rowsPerPush = Math.max(1, Math.min(rowCount, chunkBytes / sourceStride));
+        int rowsPerPull = Math.max(1, chunkBytes / targetStride);
+
+        PixelEncoding wanted = transportEncoding(sourceRows.remaining());
+
+        execute(preferred, (endpoint, stub) -> {
+            PixelEncoding encoding = endpoint.encodingFor(wanted);
+            long sessionId = encoding == PixelEncoding.IDENTITY
+                    ? stub.openStripSession(request, sourceWidth)
+                    : stub.openStripSession(request, sourceWidth, encoding.id());
+            try {
+                // RMI marshals the argument before the call returns, so one chunk array serves every raw push
+                byte[] chunk = new byte[rowsPerPush * sourceStride];
+                int received = 0;
+                for (int row = 0; row < rowCount; row += rowsPerPush) {
+                    int count = Math.min(rowsPerPush, rowCount - row);
+                    int offset = sourceRows.position() + row * sourceStride;
+                    byte[] pushed;
+                    if (encoding == PixelEncoding.IDENTITY) {
+                        if (count < rowsPerPush) {
+                            chunk = new byte[count * sourceStride];
+                        }
+                        sourceRows.get(offset, chunk);
+                        pushed = chunk;
+                    } else {
+                        pushed = encoding.encode(sourceRows.slice(offset, count * sourceStride), sourceStride);
+                    }
+                    stub.pushRows(sessionId, pushed);
+                    WIRE_BYTES_SENT.add(pushed.length);
+
+                    byte[] rows;
+                    while ((rows = stub.pullRows(sessionId, rowsPerPull)).length > 0) {
+                        WIRE_BYTES_RECEIVED.add(rows.length);
+                        int length = decodedLength(encoding, rows);
+                        if (received * targetStride + (long) length > targetRows.remaining()) {
+                            throw new IllegalStateException("Strip session returned more rows than requested");
+                        }
+                        decode(encoding, rows, targetRows.slice(targetRows.position() + received * targetStride, length));
+                        received += length / targetStride;
+                    }
+                }
+
+                if (received != request.targetRows()) {
+                    throw new IllegalStateException(String.format(
+                            "Strip session returned %d of %d rows", received, request.targetRows()));
+                }
+                return null;
+            } finally {
+                try {
+                    stub.closeStripSession(sessionId);
+                } catch (RemoteException e) {
+                    logger.debug("Could not close strip session {}: {}", sessionId, e.getMessage());
+                }
+            }
+        }, outputPixels(request));
+    }
+
+    private static PixelEncoding transportEncoding(long rawBytes) {
+        return rawBytes >= TRANSPORT_MIN_BYTES ? TRANSPORT_ENCODING : PixelEncoding.IDENTITY;
+    }
+
+    private static void countWireBytes(long sent, long received) {
+        WIRE_BYTES_SENT.add(sent);
+        WIRE_BYTES_RECEIVED.add(received);
+    }
+
+    /**
+     * Copies the pixel rows of a zoomed BMP into {@code targetRows}.
+     */
+    private static void putRows(byte[] zoomed, ByteBuffer targetRows) {
+        int pixelOffset = ByteBuffer.wrap(zoomed).order(ByteOrder.LITTLE_ENDIAN).getInt(PIXEL_OFFSET_FIELD);
+        if (zoomed.length - pixelOffset != targetRows.remaining()) {
+            throw new IllegalStateException(String.format("Zoomed strip holds %d bytes of rows, expected %d",
+                    zoomed.length - pixelOffset, targetRows.remaining()));
+        }
+        targetRows.put(targetRows.position(), zoomed, pixelOffset, targetRows.remaining());
+    }
+
+    private static int decodedLength(PixelEncoding encoding, byte[] encoded) {
         try {
-            ZoomImageInterface stub = (ZoomImageInterface) Naming.lookup(c05Url);
-            return stub.zoomImage(imagePart, zoomLevel);
-        } catch (Exception e) {
-            logger.error("Error calling RMI C05: {}", e.getMessage(), e);
-            return null;
+            return encoding.decodedLength(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Zoom server returned invalid rows: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes rows returned by a zoom server into {@code target}; corrupt rows fail the strip.
+     */
+    private static void decode(PixelEncoding encoding, byte[] encoded, ByteBuffer target) {
+        try {
+            encoding.decode(encoded, target);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Zoom server returned invalid rows: " + e.getMessage(), e);
+        }
+    }
+
+    private static long outputPixels(StripRequest request) {
+        return (long) request.targetWidth() * request.targetRows();
+    }
+
+    /**
+     * Runs a call on one endpoint, retrying it on the next healthy one after a transport failure. It tries
+     * {@code preferred} first (when it is not {@code null} and available) and counts {@code pixels} towards
+     * the throughput of the endpoint that completes it.
+     *
+     * @throws IllegalStateException when the server rejected the call or no endpoint could run it
+     */
+    private <T> T execute(ZoomEndpoint preferred, EndpointCall<T> call, long pixels) {
+        List<ZoomEndpoint> tried = new ArrayList<>(endpoints.size());
+        Exception lastFailure = null;
+
+        while (tried.size() < endpoints.size()) {
+            ZoomEndpoint endpoint = preferred != null && tried.isEmpty() && preferred.isAvailable()
+                    ? preferred : selectEndpoint(tried);
+            tried.add(endpoint);
+            try {
+                return endpoint.invoke(stub -> call.call(endpoint, stub), pixels);
+            } catch (ServerException e) {
+                countFailure(endpoint);
+                throw new IllegalStateException("RMI " + endpoint + " rejected the request: " + e.getMessage(), e);
+            } catch (RemoteException e) {
+                logger.warn("Error calling RMI {}: {}. Retrying on another endpoint.", endpoint, e.getMessage());
+                countFailure(endpoint);
+                lastFailure = e;
+            }
+        }
+
+        throw new IllegalStateException("All RMI endpoints failed", lastFailure);
+    }
+
+    private static void countFailure(ZoomEndpoint endpoint) {
+        Metrics.counter("zoom_rmi_failures_total", "Failed calls per zoom server", "endpoint", endpoint.name()).inc();
+    }
+
+    public int endpointCount() {
+        return endpoints.size();
+    }
+
+    public DispatchStrategy strategy() {
+        return strategy;
+    }
+
+    /**
+     * Endpoints whose circuit is closed, or all of them when none is, so that a caller always has
+     * somewhere to send work (and a recovered server gets probed).
+     */
+    public List<ZoomEndpoint> availableEndpoints() {
+        List<ZoomEndpoint> available = endpoints.stream().filter(ZoomEndpoint::isAvailable).toList();
+        return available.isEmpty() ? endpoints : available;
+    }
+
+    private void startHealthChecks(long intervalMs) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rmi-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(
+                () -> endpoints.forEach(ZoomEndpoint::ping), 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Picks the next endpoint that has not been tried yet, preferring ones whose circuit is closed.
+     * If every remaining endpoint is marked unavailable, one of them is still returned as a last resort.
+     */
+    private ZoomEndpoint selectEndpoint(List<ZoomEndpoint> exclude) {
+        int start = Math.floorMod(nextIndex.getAndIncrement(), endpoints.size());
+
+        ZoomEndpoint best = null;
+        ZoomEndpoint fallback = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            ZoomEndpoint candidate = endpoints.get((start + i) % endpoints.size());
+            if (exclude.contains(candidate)) {
+                continue;
+            }
+            if (!candidate.isAvailable()) {
+                if (fallback == null) {
+                    fallback = candidate;
+                }
+                continue;
+            }
+            if (strategy == DispatchStrategy.ROUND_ROBIN) {
+                return candidate;
+            }
+            // Least loaded (adaptive dispatch fails over the same way); scanning from the round-robin position spreads ties evenly
+            if (best == null || candidate.inFlight() < best.inFlight()) {
+                best = candidate;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    /**
+     * A remote call that also gets the endpoint it runs on, e.g. to pick an encoding the endpoint supports.
+     */
+    @FunctionalInterface
+    private interface EndpointCall<T> {
+        T call(ZoomEndpoint endpoint, ZoomImageInterface stub) throws RemoteException;
+    }
+
+    /**
+     * How strips are spread over the endpoints. Round robin and least loaded pick an endpoint per strip of
+     * an evenly split job; adaptive sizes each endpoint's share by its measured throughput (see
+     * {@link ZoomEndpoint#pixelsPerSecond()}) and lets idle endpoints take over the remaining strips.
+     */
+    public enum DispatchStrategy {
+        ROUND_ROBIN,
+        LEAST_LOADED,
+        ADAPTIVE;
+
+        static DispatchStrategy parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
         }
     }
 }
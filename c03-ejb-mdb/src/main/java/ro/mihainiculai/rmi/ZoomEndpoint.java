@@ -0,0 +1,285 @@
+package ro.mihainiculai.rmi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single zoom server. Keeps the looked-up stub around between calls and tracks consecutive
+ * transport failures as a simple circuit breaker: after {@code FAILURE_THRESHOLD} failures the
+ * endpoint is skipped for {@code OPEN_DURATION_MS}, after which one call (or health ping) is let
+ * through to probe it. It also keeps a moving average of the output pixels per second its strips
+ * were zoomed at, which the adaptive dispatch sizes strips by, and the pixel encodings the server
+ * listed when it was looked up.
+ * <p>
+ * At most {@code ZOOM_ENDPOINT_MAX_CONCURRENT_CALLS} calls run against a server at once; further callers
+ * wait for a slot. With strips on virtual threads this limit, not a thread pool, is what keeps a server
+ * from being flooded.
+ */
+public class ZoomEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(ZoomEndpoint.class);
+
+    private static final int FAILURE_THRESHOLD = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_CIRCUIT_FAILURE_THRESHOLD", "3"));
+    private static final long OPEN_DURATION_MS = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_CIRCUIT_OPEN_MS", "10000"));
+    // Weight of the latest strip in the throughput average; higher follows a slowdown faster but is noisier
+    private static final double THROUGHPUT_ALPHA = Double.parseDouble(
+            System.getenv().getOrDefault("ZOOM_THROUGHPUT_ALPHA", "0.3"));
+    private static final int MAX_CONCURRENT_CALLS = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_ENDPOINT_MAX_CONCURRENT_CALLS", "4"));
+
+    private final String name;
+    private final String url;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final Semaphore calls = new Semaphore(Math.max(1, MAX_CONCURRENT_CALLS), true);
+    private final Metrics.Timer callWait;
+    private final Metrics.Timer callTime;
+
+    private volatile ZoomImageInterface stub;
+    private volatile Set<PixelEncoding> encodings = EnumSet.of(PixelEncoding.IDENTITY);
+    private volatile long openUntilNanos;
+    private double pixelsPerSecond;
+
+    public ZoomEndpoint(String host, String port) {
+        this.name = host + ":" + port;
+        this.url = "rmi://" + host + ":" + port + "/ZOOM-SERVER";
+        this.callWait = Metrics.timer("zoom_rmi_endpoint_wait_seconds",
+                "Time calls waited for a free slot on a zoom server", "endpoint", name);
+        this.callTime = Metrics.timer("zoom_rmi_call_seconds", "Duration of successful calls per zoom server",
+                "endpoint", name);
+        Metrics.gauge("zoom_rmi_endpoint_waiting_calls", "Calls waiting for a free slot on a zoom server",
+                calls::getQueueLength, "endpoint", name);
+    }
+
+    /**
+     * Parses a comma separated list of {@code host:port} pairs.
+     */
+    public static List<ZoomEndpoint> parseList(String spec) {
+        List<ZoomEndpoint> endpoints = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int separator = trimmed.lastIndexOf(':');
+            if (separator <= 0 || separator == trimmed.length() - 1) {
+                throw new IllegalArgumentException("Invalid RMI endpoint: " + trimmed);
+            }
+            endpoints.add(new ZoomEndpoint(trimmed.substring(0, separator), trimmed.substring(separator + 1)));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Runs a call against this server once one of its call slots is free. A transport failure on a cached
+     * stub triggers one re-lookup (the server may simply have restarted) before the failure is counted
+     * against the endpoint. A {@link ServerException} means the server itself rejected the request and is
+     * rethrown as is.
+     */
+    public <T> T invoke(RemoteCall<T> call) throws RemoteException {
+        return invoke(call, 0);
+    }
+
+    /**
+     * Like {@link #invoke(RemoteCall)}, counting {@code pixels} output pixels towards the throughput average
+     * once the call succeeds. The call is timed from when it got its slot, so time spent waiting behind other
+     * calls does not make the server look slower than it is.
+     */
+    public <T> T invoke(RemoteCall<T> call, long pixels) throws RemoteException {
+        inFlight.incrementAndGet();
+        if (!calls.tryAcquire()) {
+            long waitStart = System.nanoTime();
+            calls.acquireUninterruptibly();
+            callWait.recordSince(waitStart);
+        }
+        long start = System.nanoTime();
+        try {
+            boolean cached = stub != null;
+            try {
+                T result = call.call(stub());
+                recordSuccess();
+                recordCall(pixels, System.nanoTime() - start);
+                return result;
+            } catch (ServerException e) {
+                throw e;
+            } catch (RemoteException e) {
+                invalidate();
+                if (!cached) {
+                    recordFailure();
+                    throw e;
+                }
+                logger.warn("Stale stub for {} ({}), looking it up again", name, e.getMessage());
+            }
+
+            try {
+                T result = call.call(stub());
+                recordSuccess();
+                recordCall(pixels, System.nanoTime() - start);
+                return result;
+            } catch (ServerException e) {
+                throw e;
+            } catch (RemoteException e) {
+                invalidate();
+                recordFailure();
+                throw e;
+            }
+        } finally {
+            calls.release();
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void recordCall(long pixels, long nanos) {
+        callTime.record(nanos);
+        recordThroughput(pixels, nanos);
+    }
+
+    /**
+     * Health check used by {@link RmiHelper}; updates the circuit state and never throws.
+     */
+    public boolean ping() {
+        try {
+            boolean alive = stub().ping();
+            if (alive) {
+                recordSuccess();
+            } else {
+                recordFailure();
+            }
+            return alive;
+        } catch (RemoteException e) {
+            invalidate();
+            recordFailure();
+            logger.debug("Health check failed for {}: {}", name, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Whether calls should be routed here: the circuit is closed, or it has been open long enough
+     * to let a probe through.
+     */
+    public boolean isAvailable() {
+        return consecutiveFailures.get() < FAILURE_THRESHOLD || System.nanoTime() - openUntilNanos >= 0;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Folds a zoomed strip of {@code pixels} output pixels that took {@code nanos} end to end (transfer
+     * included) into the throughput average.
+     */
+    private synchronized void recordThroughput(long pixels, long nanos) {
+        if (pixels <= 0 || nanos <= 0) {
+            return;
+        }
+        double sample = pixels * 1e9 / nanos;
+        pixelsPerSecond = pixelsPerSecond == 0 ? sample : pixelsPerSecond + THROUGHPUT_ALPHA * (sample - pixelsPerSecond);
+    }
+
+    /**
+     * Average output pixels per second of this server's strips, or 0 before the first one completes.
+     */
+    public synchronized double pixelsPerSecond() {
+        return pixelsPerSecond;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * {@code wanted} if this server supports it, {@link PixelEncoding#IDENTITY} otherwise.
+     */
+    public PixelEncoding encodingFor(PixelEncoding wanted) {
+        return encodings.contains(wanted) ? wanted : PixelEncoding.IDENTITY;
+    }
+
+    private ZoomImageInterface stub() throws RemoteException {
+        ZoomImageInterface current = stub;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (stub == null) {
+                ZoomImageInterface found;
+                try {
+                    found = (ZoomImageInterface) Naming.lookup(url);
+                } catch (NotBoundException | MalformedURLException e) {
+                    throw new RemoteException("Lookup of " + url + " failed", e);
+                }
+                // A restarted server may be a different version, so its encodings are asked for again
+                encodings = negotiate(found);
+                stub = found;
+            }
+            return stub;
+        }
+    }
+
+    /**
+     * Asks a freshly looked up server which pixel encodings it takes. A server that predates the question
+     * rejects the call and is sent raw rows; ids this client does not know are skipped.
+     */
+    Set<PixelEncoding> negotiate(ZoomImageInterface server) throws RemoteException {
+        Set<PixelEncoding> supported = EnumSet.of(PixelEncoding.IDENTITY);
+        try {
+            for (String id : server.supportedEncodings()) {
+                try {
+                    supported.add(PixelEncoding.parse(id));
+                } catch (IllegalArgumentException e) {
+                    logger.debug("Ignoring pixel encoding {} of {}", id, name);
+                }
+            }
+        } catch (ServerException e) {
+            logger.info("{} does not list pixel encodings ({}), sending raw rows", name, e.getMessage());
+        }
+        logger.info("RMI endpoint {} supports pixel encodings {}", name, supported);
+        return supported;
+    }
+
+    private void invalidate() {
+        stub = null;
+    }
+
+    private void recordSuccess() {
+        if (consecutiveFailures.getAndSet(0) >= FAILURE_THRESHOLD) {
+            logger.info("RMI endpoint {} is healthy again", name);
+        }
+    }
+
+    private void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (failures >= FAILURE_THRESHOLD) {
+            openUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION_MS);
+            if (failures == FAILURE_THRESHOLD) {
+                logger.warn("RMI endpoint {} marked unavailable after {} failures", name, failures);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @FunctionalInterface
+    public interface RemoteCall<T> {
+        T call(ZoomImageInterface stub) throws RemoteException;
+    }
+}
@@ -0,0 +1,61 @@
+package ro.mihainiculai.rmi;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ZoomEndpointTest {
+
+    @Test
+    void negotiateSkipsUnknownEncodings() throws RemoteException {
+        ZoomEndpoint endpoint = new ZoomEndpoint("localhost", "1");
+        ZoomImageInterface server = serverListing(new String[]{"zstd", "delta-deflate", "identity", "rle-v2"});
+
+        assertEquals(EnumSet.allOf(PixelEncoding.class), endpoint.negotiate(server));
+    }
+
+    @Test
+    void negotiateFallsBackToRawRowsWithoutKnownEncodings() throws RemoteException {
+        ZoomEndpoint endpoint = new ZoomEndpoint("localhost", "2");
+
+        assertEquals(EnumSet.of(PixelEncoding.IDENTITY), endpoint.negotiate(serverListing(new String[]{"zstd"})));
+        assertEquals(EnumSet.of(PixelEncoding.IDENTITY), endpoint.negotiate(serverListing(new String[0])));
+    }
+
+    @Test
+    void negotiateFallsBackToRawRowsForOlderServers() throws RemoteException {
+        ZoomEndpoint endpoint = new ZoomEndpoint("localhost", "3");
+        // What RMI reports when the server has no supportedEncodings method
+        ServerException unknownMethod = new ServerException("Error unmarshaling call header",
+                new UnmarshalException("unrecognized method hash"));
+
+        assertEquals(EnumSet.of(PixelEncoding.IDENTITY), endpoint.negotiate(serverFailing(unknownMethod)));
+    }
+
+    private static ZoomImageInterface serverListing(String[] encodings) {
+        return server(encodings, null);
+    }
+
+    private static ZoomImageInterface serverFailing(RemoteException failure) {
+        return server(null, failure);
+    }
+
+    private static ZoomImageInterface server(String[] encodings, RemoteException failure) {
+        return (ZoomImageInterface) Proxy.newProxyInstance(ZoomImageInterface.class.getClassLoader(),
+                new Class<?>[]{ZoomImageInterface.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("supportedEncodings")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return encodings;
+                });
+    }
+}
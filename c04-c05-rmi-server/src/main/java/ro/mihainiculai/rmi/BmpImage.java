@@ -0,0 +1,191 @@
+package ro.mihainiculai.rmi;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A BMP held in a single byte array, with the pixel rows addressed in place.
+ * <p>
+ * Images read by {@link #wrap} may be uncompressed 24-bit, 32-bit (BI_RGB, or BI_BITFIELDS with the usual
+ * BGRA masks) or 8-bit with a palette, stored bottom-up or top-down; the resampler reads their rows as they
+ * are. Images made by {@link #create} are always 24-bit bottom-up, which is what the zoom servers return.
+ * <p>
+ * The other layouts are only reachable by callers of {@link ZoomImageInterface#zoomImage}: strips and strip
+ * sessions carry 24-bit bottom-up rows, and C01 and C03 refuse any other upload before it is split.
+ */
+public class BmpImage {
+    static final int HEADER_SIZE = 54;
+
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final int pixelOffset;
+    private final int bitsPerPixel;
+    private final int stride;
+    private final boolean topDown;
+    private final int[] palette;
+
+    private BmpImage(byte[] data, int width, int height, int pixelOffset,
+                     int bitsPerPixel, boolean topDown, int[] palette) {
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.pixelOffset = pixelOffset;
+        this.bitsPerPixel = bitsPerPixel;
+        this.stride = rowSize(width, bitsPerPixel);
+        this.topDown = topDown;
+        this.palette = palette;
+    }
+
+    /**
+     * Parses the header and wraps the pixel data without copying it.
+     *
+     * @throws IllegalArgumentException if the data is not a BMP, is truncated, or uses a layout other than
+     *                                  the ones listed on the class
+     */
+    public static BmpImage wrap(byte[] data) {
+        if (data.length < HEADER_SIZE || data[0] != 'B' || data[1] != 'M') {
+            throw new IllegalArgumentException("Invalid BMP format");
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int pixelOffset = header.getInt(10);
+        int infoHeaderSize = header.getInt(14);
+        int width = header.getInt(18);
+        int signedHeight = header.getInt(22);
+        int bitsPerPixel = header.getShort(28);
+        int compression = header.getInt(30);
+
+        if (infoHeaderSize < INFO_HEADER_SIZE) {
+            throw new IllegalArgumentException("Unsupported BMP header of " + infoHeaderSize + " bytes");
+        }
+        if (width <= 0 || signedHeight == 0 || signedHeight == Integer.MIN_VALUE) {
+            throw new IllegalArgumentException("Invalid BMP dimensions " + width + "x" + signedHeight);
+        }
+        checkCompression(header, bitsPerPixel, compression);
+
+        int height = Math.abs(signedHeight);
+        int[] palette = bitsPerPixel == 8 ? readPalette(header, infoHeaderSize, pixelOffset) : null;
+        if (pixelOffset < FILE_HEADER_SIZE + infoHeaderSize
+                || pixelOffset + (long) rowSize(width, bitsPerPixel) * height > data.length) {
+            throw new IllegalArgumentException("Truncated BMP pixel data");
+        }
+        return new BmpImage(data, width, height, pixelOffset, bitsPerPixel, signedHeight < 0, palette);
+    }
+
+    private static void checkCompression(ByteBuffer header, int bitsPerPixel, int compression) {
+        boolean supported = switch (bitsPerPixel) {
+            case 8, 24 -> compression == BI_RGB;
+            // Bit fields are accepted when they describe the same BGRA layout as BI_RGB
+            case 32 -> compression == BI_RGB || compression == BI_BITFIELDS && hasBgraMasks(header);
+            default -> false;
+        };
+        if (!supported) {
+            throw new IllegalArgumentException(String.format(
+                    "Unsupported BMP: %d bits per pixel, compression %d", bitsPerPixel, compression));
+        }
+    }
+
+    private static boolean hasBgraMasks(ByteBuffer header) {
+        // The masks follow a 40-byte header and are part of the larger (V4, V5) headers
+        int masks = FILE_HEADER_SIZE + INFO_HEADER_SIZE;
+        if (masks + 12 > header.limit()) {
+            return false;
+        }
+        return header.getInt(masks) == 0x00FF0000
+                && header.getInt(masks + 4) == 0x0000FF00
+                && header.getInt(masks + 8) == 0x000000FF;
+    }
+
+    /**
+     * Reads the palette as packed {@code 0x00RRGGBB} entries; indices past the stored entries map to black.
+     */
+    private static int[] readPalette(ByteBuffer header, int infoHeaderSize, int pixelOffset) {
+        int colorsUsed = header.getInt(46);
+        int entries = colorsUsed == 0 ? 256 : colorsUsed;
+        int paletteOffset = FILE_HEADER_SIZE + infoHeaderSize;
+        if (entries < 0 || entries > 256 || paletteOffset + entries * 4L > Math.min(pixelOffset, header.limit())) {
+            throw new IllegalArgumentException("Invalid BMP palette of " + colorsUsed + " entries");
+        }
+
+        int[] palette = new int[256];
+        for (int i = 0; i < entries; i++) {
+            palette[i] = header.getInt(paletteOffset + i * 4) & 0x00FFFFFF;
+        }
+        return palette;
+    }
+
+    /**
+     * Allocates a zero-filled 24-bit bottom-up image with a fresh 54-byte header.
+     */
+    public static BmpImage create(int width, int height) {
+        int imageSize = rowSize(width) * height;
+        byte[] data = new byte[HEADER_SIZE + imageSize];
+
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+                .put(0, (byte) 'B')
+                .put(1, (byte) 'M')
+                .putInt(2, data.length)
+                .putInt(10, HEADER_SIZE)
+                .putInt(14, 40)
+                .putInt(18, width)
+                .putInt(22, height)
+                .putShort(26, (short) 1)
+                .putShort(28, (short) 24)
+                .putInt(30, 0)
+                .putInt(34, imageSize);
+
+        return new BmpImage(data, width, height, HEADER_SIZE, 24, false, null);
+    }
+
+    public static int rowSize(int width) {
+        return ((width * 3) + 3) & ~3;
+    }
+
+    static int rowSize(int width, int bitsPerPixel) {
+        return (int) (((long) width * bitsPerPixel + 31) / 32 * 4);
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int pixelOffset() {
+        return pixelOffset;
+    }
+
+    public int stride() {
+        return stride;
+    }
+
+    public int bitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    /**
+     * Palette of an 8-bit image as {@code 0x00RRGGBB} entries, {@code null} for the other depths.
+     */
+    int[] palette() {
+        return palette;
+    }
+
+    /**
+     * Offset in {@link #data()} of row {@code row}, counted bottom-up whatever the storage order.
+     */
+    public int rowOffset(int row) {
+        return pixelOffset + (topDown ? height - 1 - row : row) * stride;
+    }
+}
@@ -0,0 +1,321 @@
+package ro.mihainiculai.rmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Separable resampler working directly on the rows of a BMP pixel array. Source rows may be 24-bit BGR,
+ * 32-bit BGRA or 8-bit palette indices; output rows are always 24-bit BGR.
+ * <p>
+ * Each source row is filtered horizontally once into a small ring of float rows, and every
+ * output row is produced from the ring by the vertical pass. Weight tables, the ring and the
+ * accumulator live in per-thread scratch space, so repeated calls with the same geometry do
+ * not allocate.
+ * <p>
+ * Source and target may be windows (strips) of larger images: the sampling grid is always
+ * computed for the whole {@code sourceHeight -> targetHeight} mapping, and the windows only
+ * decide which rows are read and written. Rows are counted bottom-up; a top-down source is
+ * read through {@link BmpImage#rowOffset}, so the output is always bottom-up.
+ */
+public class BmpResampler {
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Resamples a whole image into a whole image.
+     */
+    public static void resample(BmpImage source, BmpImage target, ResampleKernel kernel) {
+        resample(source, 0, source.height(), target, 0, target.height(), kernel, null, 1);
+    }
+
+    /**
+     * Resamples into {@code target}, which holds rows {@code [targetRowOrigin, targetRowOrigin + target.height())}
+     * of a {@code targetHeight} row image, reading from {@code source}, which holds rows starting at
+     * {@code sourceRowOrigin} of a {@code sourceHeight} row image.
+     * <p>
+     * With {@code bands > 1} the output is split into row bands: the calling thread takes the first
+     * band and the rest run on {@code pool}. Every output row is computed exactly as in the sequential
+     * path, so the result is byte-identical.
+     *
+     * @throws IllegalArgumentException if the source window lacks rows needed by the kernel
+     */
+    public static void resample(BmpImage source, int sourceRowOrigin, int sourceHeight,
+                                BmpImage target, int targetRowOrigin, int targetHeight,
+                                ResampleKernel kernel, ExecutorService pool, int bands) {
+        resample(source, sourceRowOrigin, sourceHeight, target, targetRowOrigin, targetHeight,
+                kernel, null, pool, bands);
+    }
+
+    /**
+     * Resamples like {@link #resample(BmpImage, int, int, BmpImage, int, int, ResampleKernel, ExecutorService, int)},
+     * but only the output columns {@code [targetColumnOrigin, targetColumnOrigin + target.width())} of a
+     * {@code targetWidth} column image, from a source holding the columns starting at
+     * {@code sourceColumnOrigin} of a {@code sourceWidth} column image.
+     *
+     * @throws IllegalArgumentException if the source window lacks rows or columns needed by the kernel
+     */
+    public static void resample(BmpImage source, int sourceColumnOrigin, int sourceWidth,
+                                int sourceRowOrigin, int sourceHeight,
+                                BmpImage target, int targetColumnOrigin, int targetWidth,
+                                int targetRowOrigin, int targetHeight,
+                                ResampleKernel kernel, ExecutorService pool, int bands) {
+        ResampleWeights columns = ResampleWeights.compute(sourceWidth, targetWidth, kernel)
+                .window(targetColumnOrigin, targetColumnOrigin + target.width(), sourceColumnOrigin, source.width());
+        resample(source, sourceRowOrigin, sourceHeight, target, targetRowOrigin, targetHeight,
+                kernel, columns, pool, bands);
+    }
+
+    private static void resample(BmpImage source, int sourceRowOrigin, int sourceHeight,
+                                 BmpImage target, int targetRowOrigin, int targetHeight,
+                                 ResampleKernel kernel, ResampleWeights columns, ExecutorService pool, int bands) {
+        Window window = new Window(source, sourceRowOrigin, sourceHeight, target, targetRowOrigin, targetHeight,
+                kernel, columns);
+        checkCoverage(window);
+
+        int rows = target.height();
+        int bandCount = pool == null ? 1 : Math.max(1, Math.min(bands, rows));
+        if (bandCount == 1) {
+            resampleRows(window, targetRowOrigin, targetRowOrigin + rows);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(bandCount - 1);
+        for (int band = 1; band < bandCount; band++) {
+            int fromRow = targetRowOrigin + (int) ((long) rows * band / bandCount);
+            int toRow = targetRowOrigin + (int) ((long) rows * (band + 1) / bandCount);
+            futures.add(pool.submit(() -> resampleRows(window, fromRow, toRow)));
+        }
+
+        try {
+            resampleRows(window, targetRowOrigin, targetRowOrigin + rows / bandCount);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resampling", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Resampling band failed", e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(false));
+        }
+    }
+
+    private static void checkCoverage(Window window) {
+        if (window.target.height() == 0) {
+            return;
+        }
+        ResampleWeights vertical = SCRATCH.get().vertical(window.sourceHeight, window.targetHeight, window.kernel);
+        int firstRow = window.targetRowOrigin;
+        int lastRow = window.targetRowOrigin + window.target.height() - 1;
+        if (firstRow < 0 || lastRow >= window.targetHeight) {
+            throw new IllegalArgumentException("Output rows outside of the target image");
+        }
+
+        int needFrom = vertical.start[firstRow];
+        int needTo = vertical.start[lastRow] + vertical.count[lastRow];
+        int haveFrom = window.sourceRowOrigin;
+        int haveTo = window.sourceRowOrigin + window.source.height();
+        if (needFrom < haveFrom || needTo > haveTo) {
+            throw new IllegalArgumentException(String.format(
+                    "Strip holds source rows [%d, %d) but rows [%d, %d) are needed", haveFrom, haveTo, needFrom, needTo));
+        }
+    }
+
+    private static void resampleRows(Window window, int fromRow, int toRow) {
+        BmpImage source = window.source;
+        BmpImage target = window.target;
+
+        Scratch scratch = SCRATCH.get();
+        ResampleWeights horizontal = window.columns != null
+                ? window.columns : scratch.horizontal(source.width(), target.width(), window.kernel);
+        ResampleWeights vertical = scratch.vertical(window.sourceHeight, window.targetHeight, window.kernel);
+
+        byte[] dst = target.data();
+        int dstBase = target.pixelOffset() - window.targetRowOrigin * target.stride();
+
+        int channels = target.width() * 3;
+        int ringSize = vertical.maxCount;
+        float[][] ring = scratch.ring(ringSize, channels);
+        int[] ringRows = scratch.ringRows;
+        float[] accum = scratch.accum;
+
+        for (int y = fromRow; y < toRow; y++) {
+            int first = vertical.start[y];
+            int taps = vertical.count[y];
+            int weightOffset = y * vertical.maxCount;
+
+            for (int k = 0; k < taps; k++) {
+                int sourceRow = first + k;
+                int slot = sourceRow % ringSize;
+                if (ringRows[slot] != sourceRow) {
+                    filterSourceRow(source, sourceRow - window.sourceRowOrigin, horizontal, ring[slot]);
+                    ringRows[slot] = sourceRow;
+                }
+
+                float weight = vertical.weights[weightOffset + k];
+                float[] row = ring[slot];
+                if (k == 0) {
+                    for (int i = 0; i < channels; i++) {
+                        accum[i] = weight * row[i];
+                    }
+                } else {
+                    for (int i = 0; i < channels; i++) {
+                        accum[i] += weight * row[i];
+                    }
+                }
+            }
+
+            int position = dstBase + y * target.stride();
+            for (int i = 0; i < channels; i++) {
+                dst[position + i] = clampToByte(accum[i]);
+            }
+        }
+    }
+
+    /**
+     * Filters one source row in whatever pixel format it is stored; the format is picked once per row.
+     */
+    private static void filterSourceRow(BmpImage source, int row, ResampleWeights horizontal, float[] out) {
+        int rowOffset = source.rowOffset(row);
+        switch (source.bitsPerPixel()) {
+            case 24 -> filterRow(source.data(), rowOffset, horizontal, out);
+            case 32 -> filterRow32(source.data(), rowOffset, horizontal, out);
+            case 8 -> filterIndexedRow(source.data(), rowOffset, source.palette(), horizontal, out);
+            default -> throw new IllegalArgumentException("Unsupported pixel depth " + source.bitsPerPixel());
+        }
+    }
+
+    static void filterRow(byte[] src, int rowOffset, ResampleWeights horizontal, float[] out) {
+        int[] start = horizontal.start;
+        int[] count = horizontal.count;
+        float[] weights = horizontal.weights;
+        int maxCount = horizontal.maxCount;
+
+        for (int x = 0, o = 0; x < horizontal.dstSize; x++, o += 3) {
+            int p = rowOffset + start[x] * 3;
+            int weightOffset = x * maxCount;
+            float b = 0;
+            float g = 0;
+            float r = 0;
+            for (int k = 0, n = count[x]; k < n; k++, p += 3) {
+                float w = weights[weightOffset + k];
+                b += w * (src[p] & 0xFF);
+                g += w * (src[p + 1] & 0xFF);
+                r += w * (src[p + 2] & 0xFF);
+            }
+            out[o] = b;
+            out[o + 1] = g;
+            out[o + 2] = r;
+        }
+    }
+
+    /**
+     * {@link #filterRow} for BGRA pixels; the fourth byte is ignored.
+     */
+    private static void filterRow32(byte[] src, int rowOffset, ResampleWeights horizontal, float[] out) {
+        int[] start = horizontal.start;
+        int[] count = horizontal.count;
+        float[] weights = horizontal.weights;
+        int maxCount = horizontal.maxCount;
+
+        for (int x = 0, o = 0; x < horizontal.dstSize; x++, o += 3) {
+            int p = rowOffset + start[x] * 4;
+            int weightOffset = x * maxCount;
+            float b = 0;
+            float g = 0;
+            float r = 0;
+            for (int k = 0, n = count[x]; k < n; k++, p += 4) {
+                float w = weights[weightOffset + k];
+                b += w * (src[p] & 0xFF);
+                g += w * (src[p + 1] & 0xFF);
+                r += w * (src[p + 2] & 0xFF);
+            }
+            out[o] = b;
+            out[o + 1] = g;
+            out[o + 2] = r;
+        }
+    }
+
+    /**
+     * {@link #filterRow} for palette indices, looked up as {@code 0x00RRGGBB} entries.
+     */
+    private static void filterIndexedRow(byte[] src, int rowOffset, int[] palette,
+                                         ResampleWeights horizontal, float[] out) {
+        int[] start = horizontal.start;
+        int[] count = horizontal.count;
+        float[] weights = horizontal.weights;
+        int maxCount = horizontal.maxCount;
+
+        for (int x = 0, o = 0; x < horizontal.dstSize; x++, o += 3) {
+            int p = rowOffset + start[x];
+            int weightOffset = x * maxCount;
+            float b = 0;
+            float g = 0;
+            float r = 0;
+            for (int k = 0, n = count[x]; k < n; k++, p++) {
+                float w = weights[weightOffset + k];
+                int color = palette[src[p] & 0xFF];
+                b += w * (color & 0xFF);
+                g += w * ((color >> 8) & 0xFF);
+                r += w * ((color >> 16) & 0xFF);
+            }
+            out[o] = b;
+            out[o + 1] = g;
+            out[o + 2] = r;
+        }
+    }
+
+    static byte clampToByte(float value) {
+        int rounded = (int) (value + 0.5f);
+        if (rounded <= 0) {
+            return 0;
+        }
+        return (byte) Math.min(rounded, 255);
+    }
+
+    /**
+     * @param columns horizontal taps of a column window, or {@code null} for whole rows
+     */
+    private record Window(BmpImage source, int sourceRowOrigin, int sourceHeight,
+                          BmpImage target, int targetRowOrigin, int targetHeight,
+                          ResampleKernel kernel, ResampleWeights columns) {
+    }
+
+    private static final class Scratch {
+        private ResampleWeights horizontal;
+        private ResampleWeights vertical;
+        private float[][] ring = new float[0][];
+        private int[] ringRows = new int[0];
+        private float[] accum = new float[0];
+
+        ResampleWeights horizontal(int srcSize, int dstSize, ResampleKernel kernel) {
+            if (horizontal == null || !horizontal.matches(srcSize, dstSize, kernel)) {
+                horizontal = ResampleWeights.compute(srcSize, dstSize, kernel);
+            }
+            return horizontal;
+        }
+
+        ResampleWeights vertical(int srcSize, int dstSize, ResampleKernel kernel) {
+            if (vertical == null || !vertical.matches(srcSize, dstSize, kernel)) {
+                vertical = ResampleWeights.compute(srcSize, dstSize, kernel);
+            }
+            return vertical;
+        }
+
+        float[][] ring(int rows, int channels) {
+            if (ring.length < rows || ring[0].length < channels) {
+                ring = new float[Math.max(rows, ring.length)][Math.max(channels, ring.length > 0 ? ring[0].length : 0)];
+                ringRows = new int[ring.length];
+            }
+            if (accum.length < channels) {
+                accum = new float[channels];
+            }
+            Arrays.fill(ringRows, -1);
+            return ring;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ro.mihainiculai.rmi;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
 
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
@@ -11,6 +12,8 @@ public class Main {
 
     private static final String RMI_SERVER_HOST = "rmi://0.0.0.0:1099/ZOOM-SERVER";
     private static final int RMI_SERVER_PORT = 1099;
+    private static final int METRICS_PORT = Integer.parseInt(
+            System.getenv().getOrDefault("ZOOM_METRICS_PORT", "9404"));
 
     public static void main(String[] args) {
         try {
@@ -19,7 +22,8 @@ public class Main {
             ZoomImageImplementation zoomImageService = new ZoomImageImplementation();
             Naming.rebind(RMI_SERVER_HOST, zoomImageService);
 
-            logger.info("RMI Server started, waiting for calls...");
+            Metrics.startHttpServer(METRICS_PORT);
+            logger.info("RMI Server started, waiting for calls... (metrics on port {})", METRICS_PORT);
 
             // Keep the application running indefinitely
             while (true) {
@@ -0,0 +1,86 @@
+package ro.mihainiculai.rmi;
+
+import java.util.Locale;
+
+/**
+ * Reconstruction filters supported by {@link BmpResampler}. {@link #NEAREST} and {@link #AREA}
+ * are handled specially when the weight tables are built; the others are evaluated through
+ * {@link #weight(double)} and widened by the scale factor when downsampling.
+ */
+public enum ResampleKernel {
+    NEAREST(0.5) {
+        @Override
+        public double weight(double x) {
+            return Math.abs(x) < 0.5 ? 1.0 : 0.0;
+        }
+    },
+    /**
+     * Exact pixel-coverage averaging, equivalent to AWT's {@code Image.SCALE_SMOOTH}.
+     */
+    AREA(0.5) {
+        @Override
+        public double weight(double x) {
+            return Math.abs(x) < 0.5 ? 1.0 : 0.0;
+        }
+    },
+    BILINEAR(1.0) {
+        @Override
+        public double weight(double x) {
+            x = Math.abs(x);
+            return x < 1.0 ? 1.0 - x : 0.0;
+        }
+    },
+    /**
+     * Catmull-Rom cubic (a = -0.5).
+     */
+    BICUBIC(2.0) {
+        @Override
+        public double weight(double x) {
+            x = Math.abs(x);
+            if (x < 1.0) {
+                return (1.5 * x - 2.5) * x * x + 1.0;
+            }
+            if (x < 2.0) {
+                return ((-0.5 * x + 2.5) * x - 4.0) * x + 2.0;
+            }
+            return 0.0;
+        }
+    },
+    LANCZOS(3.0) {
+        @Override
+        public double weight(double x) {
+            x = Math.abs(x);
+            if (x < 1e-9) {
+                return 1.0;
+            }
+            if (x >= 3.0) {
+                return 0.0;
+            }
+            double piX = Math.PI * x;
+            return 3.0 * Math.sin(piX) * Math.sin(piX / 3.0) / (piX * piX);
+        }
+    };
+
+    private final double support;
+
+    ResampleKernel(double support) {
+        this.support = support;
+    }
+
+    public abstract double weight(double x);
+
+    /**
+     * Radius of the kernel in source pixels at a scale factor of 1.
+     */
+    public double support() {
+        return support;
+    }
+
+    public static ResampleKernel parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown resample kernel: " + name);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ro.mihainiculai.rmi;
+
+/**
+ * Precomputed filter taps for one axis: output pixel {@code i} is the weighted sum of the
+ * {@code count[i]} source pixels starting at {@code start[i]}, with weights stored at
+ * {@code weights[i * maxCount ...]}. Weights are normalised to sum to 1; taps falling outside
+ * the source are dropped, which clamps the image edges.
+ */
+final class ResampleWeights {
+    final int srcSize;
+    final int dstSize;
+    final ResampleKernel kernel;
+    final int maxCount;
+    final int[] start;
+    final int[] count;
+    final float[] weights;
+
+    private ResampleWeights(int srcSize, int dstSize, ResampleKernel kernel, int maxCount) {
+        this.srcSize = srcSize;
+        this.dstSize = dstSize;
+        this.kernel = kernel;
+        this.maxCount = maxCount;
+        this.start = new int[dstSize];
+        this.count = new int[dstSize];
+        this.weights = new float[dstSize * maxCount];
+    }
+
+    boolean matches(int srcSize, int dstSize, ResampleKernel kernel) {
+        return this.srcSize == srcSize && this.dstSize == dstSize && this.kernel == kernel;
+    }
+
+    /**
+     * The taps of outputs {@code [dstFrom, dstTo)} for a source holding only the pixels
+     * {@code [srcOrigin, srcOrigin + srcAvailable)}, re-indexed from {@code dstFrom} and {@code srcOrigin}.
+     *
+     * @throws IllegalArgumentException if the outputs are out of range or those pixels miss some of their taps
+     */
+    ResampleWeights window(int dstFrom, int dstTo, int srcOrigin, int srcAvailable) {
+        if (dstFrom < 0 || dstTo > dstSize || dstFrom >= dstTo) {
+            throw new IllegalArgumentException(String.format("Outputs [%d, %d) outside of %d", dstFrom, dstTo, dstSize));
+        }
+
+        ResampleWeights table = new ResampleWeights(srcAvailable, dstTo - dstFrom, kernel, maxCount);
+        for (int i = dstFrom; i < dstTo; i++) {
+            int first = start[i] - srcOrigin;
+            if (first < 0 || first + count[i] > srcAvailable) {
+                throw new IllegalArgumentException(String.format(
+                        "Source holds [%d, %d) but [%d, %d) are needed", srcOrigin, srcOrigin + srcAvailable,
+                        start[i], start[i] + count[i]));
+            }
+            table.start[i - dstFrom] = first;
+            table.count[i - dstFrom] = count[i];
+            System.arraycopy(weights, i * maxCount, table.weights, (i - dstFrom) * maxCount, maxCount);
+        }
+        return table;
+    }
+
+    static ResampleWeights compute(int srcSize, int dstSize, ResampleKernel kernel) {
+        double scale = (double) dstSize / srcSize;
+        return switch (kernel) {
+            case NEAREST -> nearest(srcSize, dstSize, scale);
+            case AREA -> area(srcSize, dstSize, scale);
+            default -> filtered(srcSize, dstSize, scale, kernel);
+        };
+    }
+
+    private static ResampleWeights nearest(int srcSize, int dstSize, double scale) {
+        ResampleWeights table = new ResampleWeights(srcSize, dstSize, ResampleKernel.NEAREST, 1);
+        for (int i = 0; i < dstSize; i++) {
+            int j = (int) Math.floor((i + 0.5) / scale);
+            table.start[i] = Math.min(Math.max(j, 0), srcSize - 1);
+            table.count[i] = 1;
+            table.weights[i] = 1.0f;
+        }
+        return table;
+    }
+
+    private static ResampleWeights area(int srcSize, int dstSize, double scale) {
+        double footprint = 1.0 / scale;
+        ResampleWeights table = new ResampleWeights(srcSize, dstSize, ResampleKernel.AREA,
+                (int) Math.ceil(footprint) + 1);
+
+        for (int i = 0; i < dstSize; i++) {
+            double x0 = i * footprint;
+            double x1 = Math.min((i + 1) * footprint, srcSize);
+            int first = Math.min((int) Math.floor(x0), srcSize - 1);
+            int last = Math.min((int) Math.ceil(x1), srcSize);
+
+            int offset = i * table.maxCount;
+            int n = 0;
+            for (int j = first; j < last && n < table.maxCount; j++) {
+                double coverage = Math.min(x1, j + 1) - Math.max(x0, j);
+                table.weights[offset + n++] = (float) (coverage / (x1 - x0));
+            }
+            table.start[i] = first;
+            table.count[i] = Math.max(n, 1);
+            if (n == 0) {
+                table.weights[offset] = 1.0f;
+            }
+        }
+        return table;
+    }
+
+    private static ResampleWeights filtered(int srcSize, int dstSize, double scale, ResampleKernel kernel) {
+        double filterScale = Math.max(1.0, 1.0 / scale);
+        double support = kernel.support() * filterScale;
+        ResampleWeights table = new ResampleWeights(srcSize, dstSize, kernel, (int) Math.ceil(2 * support) + 2);
+
+        for (int i = 0; i < dstSize; i++) {
+            double center = (i + 0.5) / scale;
+            int first = Math.max(0, (int) Math.floor(center - support));
+            int last = Math.min(srcSize, (int) Math.ceil(center + support));
+
+            int offset = i * table.maxCount;
+            double total = 0;
+            int n = 0;
+            for (int j = first; j < last && n < table.maxCount; j++) {
+                double w = kernel.weight((j + 0.5 - center) / filterScale);
+                table.weights[offset + n++] = (float) w;
+                total += w;
+            }
+
+            table.start[i] = first;
+            table.count[i] = n;
+            if (n == 0 || total == 0) {
+                table.start[i] = Math.min(Math.max((int) center, 0), srcSize - 1);
+                table.count[i] = 1;
+                table.weights[offset] = 1.0f;
+                continue;
+            }
+            for (int k = 0; k < n; k++) {
+                table.weights[offset + k] = (float) (table.weights[offset + k] / total);
+            }
+        }
+        return table;
+    }
+}
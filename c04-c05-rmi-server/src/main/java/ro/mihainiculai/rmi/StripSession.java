@@ -0,0 +1,155 @@
+package ro.mihainiculai.rmi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Server side of a streamed strip: source rows are pushed in storage order starting at
+ * {@link StripRequest#sourceRowOffset()}, and every output row is produced as soon as the last
+ * source row it depends on has arrived. Only a ring of horizontally filtered rows and the output
+ * rows not yet pulled are held in memory, independent of the strip size. Pushed and pulled chunks are
+ * in the session's {@link PixelEncoding}.
+ */
+class StripSession {
+    private final StripRequest request;
+    private final PixelEncoding encoding;
+    private final ResampleWeights horizontal;
+    private final ResampleWeights vertical;
+    private final int sourceStride;
+    private final int targetStride;
+    private final int channels;
+    private final long maxPendingBytes;
+
+    private final float[][] ring;
+    private final int[] ringRows;
+    private final float[] accum;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+
+    private int nextSourceRow;
+    private int nextTargetRow;
+    private volatile long lastAccessNanos = System.nanoTime();
+
+    StripSession(StripRequest request, int sourceWidth, ResampleKernel kernel, PixelEncoding encoding,
+                 long maxPendingBytes) {
+        if (request.targetRowStart() < 0 || request.targetRowEnd() > request.targetHeight()
+                || request.targetRows() <= 0 || request.targetColumns() <= 0 || sourceWidth <= 0) {
+            throw new IllegalArgumentException("Invalid strip request: " + request);
+        }
+
+        this.request = request;
+        this.encoding = encoding;
+        this.horizontal = request.hasColumnWindow()
+                ? ResampleWeights.compute(request.sourceWidth(), request.targetWidth(), kernel).window(
+                        request.targetColumnStart(), request.targetColumnEnd(), request.sourceColumnOffset(), sourceWidth)
+                : ResampleWeights.compute(sourceWidth, request.targetWidth(), kernel);
+        this.vertical = ResampleWeights.compute(request.sourceHeight(), request.targetHeight(), kernel);
+        this.sourceStride = BmpImage.rowSize(sourceWidth);
+        this.targetStride = BmpImage.rowSize(request.targetColumns());
+        this.channels = request.targetColumns() * 3;
+        this.maxPendingBytes = maxPendingBytes;
+
+        this.ring = new float[vertical.maxCount][channels];
+        this.ringRows = new int[vertical.maxCount];
+        Arrays.fill(ringRows, -1);
+        this.accum = new float[channels];
+
+        this.nextSourceRow = request.sourceRowOffset();
+        this.nextTargetRow = request.targetRowStart();
+        if (vertical.start[nextTargetRow] < nextSourceRow) {
+            throw new IllegalArgumentException("Strip starts after the first source row needed by " + request);
+        }
+    }
+
+    /**
+     * Accepts the next source rows (padded, as in the BMP pixel array).
+     */
+    synchronized void pushRows(byte[] chunk) {
+        touch();
+        byte[] rows = chunk;
+        if (encoding != PixelEncoding.IDENTITY) {
+            int length = encoding.decodedLength(chunk);
+            if (length < 0 || length > maxPendingBytes) {
+                throw new IllegalArgumentException("Invalid decoded chunk length: " + length);
+            }
+            rows = new byte[length];
+            encoding.decode(chunk, ByteBuffer.wrap(rows));
+        }
+        if (rows.length % sourceStride != 0) {
+            throw new IllegalArgumentException("Chunk is not a whole number of rows");
+        }
+
+        int ringSize = ring.length;
+        for (int offset = 0; offset < rows.length; offset += sourceStride) {
+            int sourceRow = nextSourceRow++;
+            int slot = sourceRow % ringSize;
+            BmpResampler.filterRow(rows, offset, horizontal, ring[slot]);
+            ringRows[slot] = sourceRow;
+
+            while (nextTargetRow < request.targetRowEnd() && lastTap(nextTargetRow) <= sourceRow) {
+                pending.add(produceRow(nextTargetRow++));
+            }
+        }
+
+        if ((long) pending.size() * targetStride > maxPendingBytes) {
+            throw new IllegalStateException("Too many output rows waiting to be pulled");
+        }
+    }
+
+    /**
+     * Returns up to {@code maxRows} finished output rows, possibly none.
+     */
+    synchronized byte[] pullRows(int maxRows) {
+        touch();
+        int count = Math.min(maxRows, pending.size());
+        byte[] result = new byte[count * targetStride];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(pending.poll(), 0, result, i * targetStride, targetStride);
+        }
+        // An empty chunk still means that no row is ready, whatever the encoding
+        return count == 0 || encoding == PixelEncoding.IDENTITY ? result
+                : encoding.encode(ByteBuffer.wrap(result), targetStride);
+    }
+
+    long idleNanos() {
+        return System.nanoTime() - lastAccessNanos;
+    }
+
+    private int lastTap(int targetRow) {
+        return vertical.start[targetRow] + vertical.count[targetRow] - 1;
+    }
+
+    private byte[] produceRow(int targetRow) {
+        int first = vertical.start[targetRow];
+        int taps = vertical.count[targetRow];
+        int weightOffset = targetRow * vertical.maxCount;
+
+        for (int k = 0; k < taps; k++) {
+            int slot = (first + k) % ring.length;
+            if (ringRows[slot] != first + k) {
+                throw new IllegalStateException("Source row " + (first + k) + " was not pushed");
+            }
+            float weight = vertical.weights[weightOffset + k];
+            float[] row = ring[slot];
+            if (k == 0) {
+                for (int i = 0; i < channels; i++) {
+                    accum[i] = weight * row[i];
+                }
+            } else {
+                for (int i = 0; i < channels; i++) {
+                    accum[i] += weight * row[i];
+                }
+            }
+        }
+
+        byte[] out = new byte[targetStride];
+        for (int i = 0; i < channels; i++) {
+            out[i] = BmpResampler.clampToByte(accum[i]);
+        }
+        return out;
+    }
+
+    private void touch() {
+        lastAccessNanos = System.nanoTime();
+    }
+}
@@ -2,51 +2,260 @@ package ro.mihainiculai.rmi;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ro.mihainiculai.metrics.Metrics;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ZoomImageImplementation extends UnicastRemoteObject implements ZoomImageInterface {
 
     private static final Logger logger = LoggerFactory.getLogger(ZoomImageImplementation.class);
 
-    protected ZoomImageImplementation() throws RemoteException {
+    // For callers that do not name a kernel; C01 always does, and picks its default through ZOOM_KERNEL
+    private static final ResampleKernel DEFAULT_KERNEL = ResampleKernel.AREA;
+
+    private static final int PARALLELISM = Integer.parseInt(System.getenv().getOrDefault(
+            "ZOOM_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int MIN_BAND_ROWS = 32;
+
+    // FIFO (async mode) so bands from concurrent calls are served in arrival order
+    private static final ForkJoinPool RESAMPLE_POOL = new ForkJoinPool(
+            PARALLELISM, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    private static final AtomicInteger ACTIVE_CALLS = new AtomicInteger();
+
+    private static final long SESSION_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_SESSION_IDLE_TIMEOUT_SECONDS", "120")));
+    private static final long SESSION_MAX_PENDING_BYTES = Long.parseLong(
+            System.getenv().getOrDefault("ZOOM_SESSION_MAX_PENDING_BYTES", String.valueOf(256L * 1024 * 1024)));
+
+    private static final Metrics.Timer DECODE_TIME = Metrics.timer(
+            "zoom_server_stage_seconds", "Time spent per stage of a zoom call", "stage", "decode");
+    private static final Metrics.Timer RESAMPLE_TIME = Metrics.timer(
+            "zoom_server_stage_seconds", "Time spent per stage of a zoom call", "stage", "resample");
+    private static final Metrics.Counter BYTES_IN = Metrics.counter(
+            "zoom_server_bytes_total", "Image bytes received and returned", "direction", "in");
+    private static final Metrics.Counter BYTES_OUT = Metrics.counter(
+            "zoom_server_bytes_total", "Image bytes received and returned", "direction", "out");
+
+    static {
+        Metrics.gauge("zoom_server_active_calls", "Zoom calls being resampled", ACTIVE_CALLS::get);
+        Metrics.gauge("zoom_server_pool_active_threads", "Resample pool threads running a band",
+                RESAMPLE_POOL::getActiveThreadCount);
+        Metrics.gauge("zoom_server_pool_queued_tasks", "Resample bands waiting for a pool thread",
+                () -> RESAMPLE_POOL.getQueuedSubmissionCount() + RESAMPLE_POOL.getQueuedTaskCount());
+    }
+
+    private final Map<Long, StripSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSessionId = new AtomicLong();
+
+    public ZoomImageImplementation() throws RemoteException {
         super();
+        Metrics.gauge("zoom_server_strip_sessions", "Open strip sessions", sessions::size);
     }
 
     @Override
     public byte[] zoomImage(byte[] imageData, double zoomLevel) throws RemoteException {
+        return zoomImage(imageData, zoomLevel, null);
+    }
+
+    @Override
+    public byte[] zoomImage(byte[] imageData, double zoomLevel, String kernelName) throws RemoteException {
         logger.info("Received {} bytes for zoom level: {}", imageData.length, zoomLevel);
+        countCall("zoomImage");
+        BYTES_IN.add(imageData.length);
+
+        try {
+            long start = System.nanoTime();
+            BmpImage source = BmpImage.wrap(imageData);
+            DECODE_TIME.recordSince(start);
+            int newWidth = Math.max(1, (int) Math.round(source.width() * zoomLevel));
+            int newHeight = Math.max(1, (int) Math.round(source.height() * zoomLevel));
+
+            byte[] result = resample(source, new StripRequest(
+                    kernelName, source.height(), 0, newWidth, newHeight, 0, newHeight)).data();
+            BYTES_OUT.add(result.length);
+            return result;
+        } catch (IllegalArgumentException e) {
+            logger.error("Error scaling BMP: ", e);
+            throw new RemoteException("Error scaling BMP", e);
+        }
+    }
+
+    @Override
+    public byte[] zoomStrip(BmpStrip strip, StripRequest request) throws RemoteException {
+        return zoomStrip(strip, request, null);
+    }
+
+    @Override
+    public byte[] zoomStrip(BmpStrip strip, StripRequest request, String encodingId) throws RemoteException {
+        logger.info("Received {} byte strip ({} on the wire) of job {} for output rows [{}, {}) of {}x{}",
+                strip.length(), strip.wireLength(), request.jobId(), request.targetRowStart(),
+                request.targetRowEnd(), request.targetWidth(), request.targetHeight());
+        countCall("zoomStrip");
+        BYTES_IN.add(strip.wireLength());
+
+        try {
+            // Without an encoding the whole BMP is returned, as before encodings existed
+            PixelEncoding encoding = encodingId == null ? null : PixelEncoding.parse(encodingId);
+            long start = System.nanoTime();
+            BmpImage source = BmpImage.wrap(strip.data());
+            DECODE_TIME.recordSince(start);
+            BmpImage target = resample(source, request);
+            byte[] result = encoding == null ? target.data() : encodeRows(target, encoding);
+            BYTES_OUT.add(result.length);
+            return result;
+        } catch (IllegalArgumentException e) {
+            logger.error("Error scaling BMP strip: ", e);
+            throw new RemoteException("Error scaling BMP strip", e);
+        }
+    }
+
+    @Override
+    public byte[][] zoomStrips(BmpStrip strip, StripRequest[] requests, String encodingId) throws RemoteException {
+        logger.info("Received {} byte strip ({} on the wire) of job {} for {} output sizes", strip.length(),
+                strip.wireLength(), requests.length > 0 ? requests[0].jobId() : null, requests.length);
+        countCall("zoomStrips");
+        BYTES_IN.add(strip.wireLength());
+
+        try {
+            PixelEncoding encoding = PixelEncoding.parse(encodingId);
+            long start = System.nanoTime();
+            BmpImage source = BmpImage.wrap(strip.data());
+            DECODE_TIME.recordSince(start);
 
-        try (ByteArrayInputStream imageInputStream = new ByteArrayInputStream(imageData)) {
-            BufferedImage originalImage = ImageIO.read(imageInputStream);
-            if (originalImage == null) {
-                throw new IllegalArgumentException("Invalid or unsupported BMP data.");
+            byte[][] results = new byte[requests.length][];
+            for (int i = 0; i < requests.length; i++) {
+                results[i] = encodeRows(resample(source, requests[i]), encoding);
+                BYTES_OUT.add(results[i].length);
             }
+            return results;
+        } catch (IllegalArgumentException e) {
+            logger.error("Error scaling BMP strip: ", e);
+            throw new RemoteException("Error scaling BMP strip", e);
+        }
+    }
+
+    @Override
+    public long openStripSession(StripRequest request, int sourceWidth) throws RemoteException {
+        return openStripSession(request, sourceWidth, PixelEncoding.IDENTITY.id());
+    }
+
+    @Override
+    public long openStripSession(StripRequest request, int sourceWidth, String encodingId) throws RemoteException {
+        // Sessions abandoned by a crashed client are dropped lazily
+        sessions.values().removeIf(session -> session.idleNanos() > SESSION_IDLE_TIMEOUT_NANOS);
+
+        try {
+            ResampleKernel kernel = request.kernel() == null ? DEFAULT_KERNEL : ResampleKernel.parse(request.kernel());
+            PixelEncoding encoding = PixelEncoding.parse(encodingId);
+            long sessionId = nextSessionId.incrementAndGet();
+            sessions.put(sessionId, new StripSession(request, sourceWidth, kernel, encoding, SESSION_MAX_PENDING_BYTES));
+
+            countCall("openStripSession");
+            logger.info("Opened strip session {} of job {} for output rows [{}, {}) of {}x{} ({} encoding)", sessionId,
+                    request.jobId(), request.targetRowStart(), request.targetRowEnd(),
+                    request.targetWidth(), request.targetHeight(), encoding.id());
+            return sessionId;
+        } catch (IllegalArgumentException e) {
+            logger.error("Error opening strip session: ", e);
+            throw new RemoteException("Error opening strip session", e);
+        }
+    }
+
+    @Override
+    public void pushRows(long sessionId, byte[] rows) throws RemoteException {
+        BYTES_IN.add(rows.length);
+        try {
+            long start = System.nanoTime();
+            session(sessionId).pushRows(rows);
+            RESAMPLE_TIME.recordSince(start);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            sessions.remove(sessionId);
+            logger.error("Error in strip session {}: ", sessionId, e);
+            throw new RemoteException("Error in strip session " + sessionId, e);
+        }
+    }
+
+    @Override
+    public byte[] pullRows(long sessionId, int maxRows) throws RemoteException {
+        byte[] rows = session(sessionId).pullRows(maxRows);
+        BYTES_OUT.add(rows.length);
+        return rows;
+    }
+
+    @Override
+    public void closeStripSession(long sessionId) {
+        if (sessions.remove(sessionId) != null) {
+            logger.info("Closed strip session {}", sessionId);
+        }
+    }
+
+    @Override
+    public String[] supportedEncodings() {
+        return Arrays.stream(PixelEncoding.values()).map(PixelEncoding::id).toArray(String[]::new);
+    }
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
 
-            int newWidth = (int) Math.round(originalImage.getWidth() * zoomLevel);
-            int newHeight = (int) Math.round(originalImage.getHeight() * zoomLevel);
+    private static void countCall(String method) {
+        Metrics.counter("zoom_server_calls_total", "Zoom calls by method", "method", method).inc();
+    }
+
+    private StripSession session(long sessionId) throws RemoteException {
+        StripSession session = sessions.get(sessionId);
+        if (session == null) {
+            throw new RemoteException("Unknown or expired strip session " + sessionId);
+        }
+        return session;
+    }
 
-            Image scaledInstanceImage = originalImage.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
+    private static byte[] encodeRows(BmpImage image, PixelEncoding encoding) {
+        byte[] data = image.data();
+        return encoding.encode(ByteBuffer.wrap(data, image.pixelOffset(), data.length - image.pixelOffset()),
+                image.stride());
+    }
 
-            BufferedImage scaledImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D graphics2D = scaledImage.createGraphics();
-            graphics2D.drawImage(scaledInstanceImage, 0, 0, null);
-            graphics2D.dispose();
+    private static BmpImage resample(BmpImage source, StripRequest request) {
+        ResampleKernel kernel = request.kernel() == null ? DEFAULT_KERNEL : ResampleKernel.parse(request.kernel());
+        if (request.targetRowStart() < 0 || request.targetRowEnd() > request.targetHeight()
+                || request.targetRows() <= 0 || request.targetColumns() <= 0) {
+            throw new IllegalArgumentException("Invalid output rows: " + request);
+        }
 
-            try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                ImageIO.write(scaledImage, "bmp", outputStream);
-                return outputStream.toByteArray();
+        BmpImage target = BmpImage.create(request.targetColumns(), request.targetRows());
+        long start = System.nanoTime();
+        int activeCalls = ACTIVE_CALLS.incrementAndGet();
+        try {
+            // Concurrent calls split the pool between them instead of queueing behind each other
+            int bands = Math.min(Math.max(1, PARALLELISM / activeCalls), Math.max(1, target.height() / MIN_BAND_ROWS));
+            if (request.hasColumnWindow()) {
+                BmpResampler.resample(
+                        source, request.sourceColumnOffset(), request.sourceWidth(),
+                        request.sourceRowOffset(), request.sourceHeight(),
+                        target, request.targetColumnStart(), request.targetWidth(),
+                        request.targetRowStart(), request.targetHeight(),
+                        kernel, RESAMPLE_POOL, bands);
+            } else {
+                BmpResampler.resample(
+                        source, request.sourceRowOffset(), request.sourceHeight(),
+                        target, request.targetRowStart(), request.targetHeight(),
+                        kernel, RESAMPLE_POOL, bands);
             }
-        } catch (IOException e) {
-            logger.error("Error scaling BMP: ", e);
-            throw new RemoteException("Error scaling BMP", e);
+        } finally {
+            ACTIVE_CALLS.decrementAndGet();
         }
+        RESAMPLE_TIME.recordSince(start);
+        return target;
     }
 }
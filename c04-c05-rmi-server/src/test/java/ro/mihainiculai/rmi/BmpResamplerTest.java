@@ -0,0 +1,125 @@
+package ro.mihainiculai.rmi;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BmpResamplerTest {
+    private static final int WIDTH = 317;
+    private static final int HEIGHT = 241;
+
+    private static ExecutorService pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Splitting the output into row bands on a pool must give exactly the bytes of the sequential path.
+     */
+    @ParameterizedTest
+    @EnumSource(ResampleKernel.class)
+    void bandsMatchSequential(ResampleKernel kernel) {
+        BmpImage source = syntheticImage(WIDTH, HEIGHT, 2);
+        for (double zoomLevel : new double[]{0.3, 1.0, 2.7}) {
+            int targetWidth = (int) Math.round(WIDTH * zoomLevel);
+            int targetHeight = (int) Math.round(HEIGHT * zoomLevel);
+            BmpImage sequential = BmpImage.create(targetWidth, targetHeight);
+            BmpResampler.resample(source, 0, HEIGHT, sequential, 0, targetHeight, kernel, pool, 1);
+
+            for (int bands : new int[]{2, 7, targetHeight}) {
+                BmpImage banded = BmpImage.create(targetWidth, targetHeight);
+                BmpResampler.resample(source, 0, HEIGHT, banded, 0, targetHeight, kernel, pool, bands);
+                assertArrayEquals(sequential.data(), banded.data(),
+                        kernel + " at zoom " + zoomLevel + " with " + bands + " bands");
+            }
+        }
+    }
+
+    /**
+     * The AREA kernel replaced {@code getScaledInstance(SCALE_SMOOTH)} and stays within one level per channel of it.
+     */
+    @ParameterizedTest
+    @ValueSource(doubles = {0.25, 0.5, 0.8, 1.5, 2.0, 3.3})
+    void areaMatchesScaleSmooth(double zoomLevel) {
+        BmpImage source = syntheticImage(WIDTH, HEIGHT, 1);
+        int targetWidth = (int) Math.round(WIDTH * zoomLevel);
+        int targetHeight = (int) Math.round(HEIGHT * zoomLevel);
+
+        BmpImage zoomed = BmpImage.create(targetWidth, targetHeight);
+        BmpResampler.resample(source, zoomed, ResampleKernel.AREA);
+        BufferedImage smooth = scaleSmooth(toBufferedImage(source), targetWidth, targetHeight);
+
+        byte[] expected = ((DataBufferByte) smooth.getRaster().getDataBuffer()).getData();
+        byte[] actual = zoomed.data();
+        int maxDifference = 0;
+        for (int y = 0; y < targetHeight; y++) {
+            // BufferedImage rows run top-down, BMP rows bottom-up
+            int actualRow = zoomed.rowOffset(targetHeight - 1 - y);
+            for (int x = 0; x < targetWidth * 3; x++) {
+                int difference = Math.abs((expected[y * targetWidth * 3 + x] & 0xFF) - (actual[actualRow + x] & 0xFF));
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+        assertTrue(maxDifference <= 1, "AREA differs from SCALE_SMOOTH by " + maxDifference + " at zoom " + zoomLevel);
+    }
+
+    /**
+     * Gradients with noise, so both smooth areas and edges are covered.
+     */
+    static BmpImage syntheticImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BmpImage image = BmpImage.create(width, height);
+        byte[] data = image.data();
+        for (int y = 0; y < height; y++) {
+            int row = image.rowOffset(y);
+            for (int x = 0; x < width; x++) {
+                data[row + x * 3] = (byte) (x * 255 / width + random.nextInt(16));
+                data[row + x * 3 + 1] = (byte) (y * 255 / height + random.nextInt(16));
+                data[row + x * 3 + 2] = (byte) ((x / 16 + y / 16) % 2 == 0 ? 40 : 220);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage toBufferedImage(BmpImage image) {
+        BufferedImage buffered = new BufferedImage(image.width(), image.height(), BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) buffered.getRaster().getDataBuffer()).getData();
+        int rowBytes = image.width() * 3;
+        for (int y = 0; y < image.height(); y++) {
+            System.arraycopy(image.data(), image.rowOffset(image.height() - 1 - y), pixels, y * rowBytes, rowBytes);
+        }
+        return buffered;
+    }
+
+    /**
+     * The zoom servers' former path: scale with SCALE_SMOOTH and draw the result into a BGR image.
+     */
+    private static BufferedImage scaleSmooth(BufferedImage source, int width, int height) {
+        Image scaled = source.getScaledInstance(width, height, Image.SCALE_SMOOTH);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = result.createGraphics();
+        graphics.drawImage(scaled, 0, 0, null);
+        graphics.dispose();
+        return result;
+    }
+}
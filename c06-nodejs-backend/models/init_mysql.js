@@ -22,6 +22,28 @@ async function initDB() {
         );
     `);
 
+    await connection.query(`
+        CREATE TABLE IF NOT EXISTS tile_pyramids (
+        job_id VARCHAR(255),
+        width INT NOT NULL,
+        height INT NOT NULL,
+        tile_size INT NOT NULL,
+        levels INT NOT NULL,
+        PRIMARY KEY (job_id)
+        );
+    `);
+
+    await connection.query(`
+        CREATE TABLE IF NOT EXISTS tiles (
+        job_id VARCHAR(255),
+        level INT NOT NULL,
+        x INT NOT NULL,
+        y INT NOT NULL,
+        data LONGBLOB,
+        PRIMARY KEY (job_id, level, x, y)
+        );
+    `);
+
     await connection.end();
 }
 
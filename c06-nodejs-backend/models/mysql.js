@@ -12,7 +12,8 @@ async function saveImage(jobId, imageData) {
     const connection = await pool.getConnection();
     try {
         await connection.query(
-            "INSERT INTO images (job_id, data) VALUES (?, ?)",
+            // Redelivered jobs upload the same result again
+            "INSERT INTO images (job_id, data) VALUES (?, ?) ON DUPLICATE KEY UPDATE data = VALUES(data)",
             [jobId, imageData]
         );
     } finally {
@@ -33,7 +34,64 @@ async function getImageByJobId(jobId) {
     }
 }
 
+async function saveTiles(jobId, level, y, tiles) {
+    const connection = await pool.getConnection();
+    try {
+        await connection.query(
+            // Redelivered jobs store the same tiles again
+            "INSERT INTO tiles (job_id, level, x, y, data) VALUES ? ON DUPLICATE KEY UPDATE data = VALUES(data)",
+            [tiles.map((data, x) => [jobId, level, x, y, data])]
+        );
+    } finally {
+        connection.release();
+    }
+}
+
+async function getTile(jobId, level, x, y) {
+    const connection = await pool.getConnection();
+    try {
+        const [rows] = await connection.query(
+            "SELECT data FROM tiles WHERE job_id = ? AND level = ? AND x = ? AND y = ?",
+            [jobId, level, x, y]
+        );
+        return rows[0];
+    } finally {
+        connection.release();
+    }
+}
+
+async function savePyramid(jobId, pyramid) {
+    const connection = await pool.getConnection();
+    try {
+        await connection.query(
+            `INSERT INTO tile_pyramids (job_id, width, height, tile_size, levels) VALUES (?, ?, ?, ?, ?)
+             ON DUPLICATE KEY UPDATE width = VALUES(width), height = VALUES(height),
+                 tile_size = VALUES(tile_size), levels = VALUES(levels)`,
+            [jobId, pyramid.width, pyramid.height, pyramid.tileSize, pyramid.levels]
+        );
+    } finally {
+        connection.release();
+    }
+}
+
+async function getPyramid(jobId) {
+    const connection = await pool.getConnection();
+    try {
+        const [rows] = await connection.query(
+            "SELECT width, height, tile_size AS tileSize, levels FROM tile_pyramids WHERE job_id = ?",
+            [jobId]
+        );
+        return rows[0];
+    } finally {
+        connection.release();
+    }
+}
+
 module.exports = {
     saveImage,
-    getImageByJobId
+    getImageByJobId,
+    saveTiles,
+    getTile,
+    savePyramid,
+    getPyramid
 };
@@ -0,0 +1,118 @@
+const express = require("express");
+const router = express.Router();
+const mysqlModel = require("../models/mysql");
+
+// Tiles are never rewritten with different content, so clients may keep them for good
+const TILE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+// Splits a body of consecutive BMP files, each starting with its own size at offset 2
+function splitBmps(body) {
+    const files = [];
+    let offset = 0;
+    while (offset < body.length) {
+        if (body.length - offset < 54 || body[offset] !== 0x42 || body[offset + 1] !== 0x4d) {
+            return null;
+        }
+        const size = body.readUInt32LE(offset + 2);
+        if (size < 54 || offset + size > body.length) {
+            return null;
+        }
+        files.push(body.subarray(offset, offset + size));
+        offset += size;
+    }
+    return files;
+}
+
+function parseIndices(params, names) {
+    const values = names.map((name) => Number(params[name]));
+    return values.every((value) => Number.isInteger(value) && value >= 0) ? values : null;
+}
+
+// PUT /api/tiles/:jobId/:level/:y - one row of tiles, left to right
+router.put("/tiles/:jobId/:level/:y", async (req, res) => {
+    try {
+        const {jobId} = req.params;
+        const indices = parseIndices(req.params, ["level", "y"]);
+        if (!indices) {
+            return res.status(400).json({message: "Invalid tile coordinates."});
+        }
+
+        const tiles = req.body instanceof Buffer ? splitBmps(req.body) : null;
+        if (!tiles || tiles.length === 0) {
+            return res.status(400).json({message: "Invalid tile data."});
+        }
+
+        const [level, y] = indices;
+        await mysqlModel.saveTiles(jobId, level, y, tiles);
+        return res.status(200).json({message: "Tiles saved successfully."});
+    } catch (error) {
+        console.error("Error saving tiles:", error);
+        return res.status(500).json({message: "Error saving tiles."});
+    }
+});
+
+// PUT /api/tiles/:jobId - pyramid description, stored once all tiles are in place
+router.put("/tiles/:jobId", async (req, res) => {
+    try {
+        const {jobId} = req.params;
+        const {width, height, tileSize, levels} = req.body || {};
+        if (![width, height, tileSize, levels].every((value) => Number.isInteger(value) && value > 0)) {
+            return res.status(400).json({message: "Invalid pyramid description."});
+        }
+
+        await mysqlModel.savePyramid(jobId, {width, height, tileSize, levels});
+        return res.status(200).json({
+            message: "Tile pyramid saved successfully.",
+            downloadUrl: `/api/tiles/${jobId}`
+        });
+    } catch (error) {
+        console.error("Error saving tile pyramid:", error);
+        return res.status(500).json({message: "Error saving tile pyramid."});
+    }
+});
+
+// GET /api/tiles/:jobId - pyramid description (Deep Zoom layout: the highest level is full size)
+router.get("/tiles/:jobId", async (req, res) => {
+    try {
+        const {jobId} = req.params;
+        const pyramid = await mysqlModel.getPyramid(jobId);
+        if (!pyramid) {
+            return res.status(404).json({message: "Tile pyramid not found."});
+        }
+
+        return res.json({
+            jobId,
+            ...pyramid,
+            format: "bmp",
+            tileUrl: `/api/tiles/${jobId}/{level}/{x}/{y}`
+        });
+    } catch (error) {
+        console.error("Error fetching tile pyramid:", error);
+        return res.status(500).json({message: "Error fetching tile pyramid."});
+    }
+});
+
+// GET /api/tiles/:jobId/:level/:x/:y
+router.get("/tiles/:jobId/:level/:x/:y", async (req, res) => {
+    try {
+        const {jobId} = req.params;
+        const indices = parseIndices(req.params, ["level", "x", "y"]);
+        if (!indices) {
+            return res.status(400).json({message: "Invalid tile coordinates."});
+        }
+
+        const tile = await mysqlModel.getTile(jobId, ...indices);
+        if (!tile) {
+            return res.status(404).json({message: "Tile not found."});
+        }
+
+        res.set("Content-Type", "image/bmp");
+        res.set("Cache-Control", TILE_CACHE_CONTROL);
+        return res.send(tile.data);
+    } catch (error) {
+        console.error("Error fetching tile:", error);
+        return res.status(500).json({message: "Error fetching tile."});
+    }
+});
+
+module.exports = router;
@@ -3,6 +3,7 @@ const express = require("express");
 const bodyParser = require("body-parser");
 const cors = require("cors");
 const imageRoutes = require("./routes/images");
+const tileRoutes = require("./routes/tiles");
 const snmpRoutes = require("./routes/snmp");
 const snmpService = require("./services/snmpService");
 const {initDB} = require("./models/init_mysql");
@@ -43,6 +44,7 @@ app.use(
 
 // Routes
 app.use("/api", imageRoutes);
+app.use("/api", tileRoutes);
 app.use("/api", snmpRoutes);
 
 // Start SNMP polling
@@ -8,11 +8,15 @@ import ContainerStats from "./_components/container-stats";
 interface UploadResponse {
     jobId: string;
     message: string;
+    // Present when the same image was already zoomed at this level
+    downloadUrl?: string;
 }
 
 interface WebSocketMessage {
     jobId: string;
-    downloadUrl: string;
+    downloadUrl?: string;
+    // Present instead of downloadUrl when the job failed
+    error?: string;
 }
 
 interface ImageProcessingError {
@@ -82,8 +86,13 @@ export default function Home() {
                     headers: { "Content-Type": "multipart/form-data" },
                 }
             );
-            setJobId(response.data.jobId);
             console.log("Job ID:", response.data.jobId);
+            if (response.data.downloadUrl) {
+                setIsLoading(false);
+                setProcessedImageUrl(response.data.downloadUrl);
+            } else {
+                setJobId(response.data.jobId);
+            }
         } catch (err) {
             console.error("Error processing image:", err);
             const axiosError = err as AxiosError<ImageProcessingError>;
@@ -112,6 +121,8 @@ export default function Home() {
 
         ws.onopen = () => {
             console.log("WebSocket connected");
+            // Only jobs we subscribe to are pushed to this connection
+            ws.send(JSON.stringify({ type: "subscribe", jobId }));
         };
 
         ws.onmessage = (event) => {
@@ -124,7 +135,11 @@ export default function Home() {
                         timeoutRef.current = null;
                     }
                     setIsLoading(false);
-                    setProcessedImageUrl(data.downloadUrl);
+                    if (data.error) {
+                        setError(data.error);
+                    } else if (data.downloadUrl) {
+                        setProcessedImageUrl(data.downloadUrl);
+                    }
                 }
             } catch (parseError) {
                 console.error("Error parsing WebSocket message:", parseError);
@@ -0,0 +1,189 @@
+package ro.mihainiculai.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide counters, gauges and timers, exposed in the Prometheus text format. C01, C03 and the zoom
+ * servers all depend on this module, so every service reports under the same names and labels.
+ * <p>
+ * A metric is identified by its name and label pairs, e.g.
+ * {@code Metrics.timer("zoom_stage_seconds", "Time spent per stage", "stage", "decode")}; asking again
+ * for the same name and labels returns the same metric, so call sites can look metrics up where they
+ * use them. Timers are histograms with fixed buckets from 1 ms to 2 minutes.
+ */
+public final class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labelText(labels), key -> new Counter());
+    }
+
+    public static Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, "histogram").series.computeIfAbsent(labelText(labels), key -> new Timer());
+    }
+
+    /**
+     * Registers a gauge read from {@code value} on every scrape, replacing an earlier one with the same labels.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labelText(labels), value);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> {
+                if (metric instanceof Counter counter) {
+                    sample(out, family.name, labels, counter.value.sum());
+                } else if (metric instanceof Timer timer) {
+                    timer.appendTo(out, family.name, labels);
+                } else {
+                    sample(out, family.name, labels, ((DoubleSupplier) metric).getAsDouble());
+                }
+            });
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serves {@link #scrape()} on {@code /metrics}, for services without an HTTP server of their own.
+     */
+    public static HttpServer startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelText(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            text.append(labels[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+    }
+
+    public static final class Timer {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Timer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        private void appendTo(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + BUCKETS[i] + "\"", cumulative);
+            }
+            long total = count.sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", Math.max(total, cumulative));
+            sample(out, name + "_sum", labels, sum.sum());
+            sample(out, name + "_count", labels, total);
+        }
+    }
+
+    private record Family(String name, String help, String type, Map<String, Object> series) {
+        Family(String name, String help, String type) {
+            this(name, help, type, new ConcurrentHashMap<>());
+        }
+    }
+}
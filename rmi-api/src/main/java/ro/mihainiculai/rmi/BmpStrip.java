@@ -0,0 +1,135 @@
+package ro.mihainiculai.rmi;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A BMP strip sent to {@link ZoomImageInterface#zoomStrip}. The sender builds it from a header and a
+ * view of the padded pixel rows; the rows are written to the RMI stream straight from that view, so
+ * the strip is never copied into an intermediate array. The receiver gets the complete BMP file.
+ * <p>
+ * A strip can also send its rows in a {@link PixelEncoding}; they are then encoded once by
+ * {@link #encoded} and decoded while the receiver reads the strip.
+ */
+public final class BmpStrip implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int COPY_CHUNK_BYTES = 64 * 1024;
+
+    // Id of the encoding the rows are sent in, or null for raw rows as older receivers expect
+    private final String encoding;
+
+    private transient byte[] header;
+    private transient ByteBuffer rows;
+    private transient byte[] encodedRows;
+    private transient byte[] data;
+    private transient int wireLength;
+
+    public BmpStrip(byte[] header, ByteBuffer rows) {
+        this(header, rows, null, null);
+    }
+
+    private BmpStrip(byte[] header, ByteBuffer rows, String encoding, byte[] encodedRows) {
+        this.header = header;
+        this.rows = rows;
+        this.encoding = encoding;
+        this.encodedRows = encodedRows;
+        this.wireLength = header.length + (encodedRows != null ? encodedRows.length : rows.remaining());
+    }
+
+    /**
+     * This strip with its rows, {@code stride} bytes each, sent in {@code encoding}. Only to be sent to a
+     * receiver that supports the encoding.
+     */
+    public BmpStrip encoded(PixelEncoding encoding, int stride) {
+        if (encoding == PixelEncoding.IDENTITY) {
+            return this;
+        }
+        return new BmpStrip(header, rows, encoding.id(), encoding.encode(rows.duplicate(), stride));
+    }
+
+    /**
+     * The complete BMP file. Only available on the receiving side.
+     */
+    public byte[] data() {
+        if (data == null) {
+            throw new IllegalStateException("Strip data is only available after deserialization");
+        }
+        return data;
+    }
+
+    public int length() {
+        return data != null ? data.length : header.length + rows.remaining();
+    }
+
+    /**
+     * Bytes of header and rows that are, or were, sent over the wire, which is less than {@link #length()}
+     * for encoded rows.
+     */
+    public int wireLength() {
+        return wireLength;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        ByteBuffer view = rows.duplicate();
+        out.writeInt(header.length + view.remaining());
+        if (encodedRows != null) {
+            out.writeInt(header.length);
+            out.write(header);
+            out.writeInt(encodedRows.length);
+            out.write(encodedRows);
+            return;
+        }
+        out.write(header);
+        if (view.hasArray()) {
+            out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            return;
+        }
+
+        byte[] chunk = new byte[Math.min(COPY_CHUNK_BYTES, view.remaining())];
+        while (view.hasRemaining()) {
+            int count = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, count);
+            out.write(chunk, 0, count);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        int length = in.readInt();
+        if (length < 0) {
+            throw new InvalidObjectException("Negative strip length: " + length);
+        }
+        data = new byte[length];
+        if (encoding == null) {
+            in.readFully(data);
+            wireLength = length;
+            return;
+        }
+
+        int headerLength = in.readInt();
+        if (headerLength < 0 || headerLength > length) {
+            throw new InvalidObjectException("Invalid strip header length: " + headerLength);
+        }
+        in.readFully(data, 0, headerLength);
+        int encodedLength = in.readInt();
+        if (encodedLength < 0) {
+            throw new InvalidObjectException("Negative encoded length: " + encodedLength);
+        }
+        byte[] encoded = new byte[encodedLength];
+        in.readFully(encoded);
+        try {
+            PixelEncoding.parse(encoding).decode(encoded, ByteBuffer.wrap(data, headerLength, length - headerLength));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException("Could not decode strip rows: " + e.getMessage());
+        }
+        wireLength = headerLength + encodedLength;
+    }
+}
@@ -0,0 +1,150 @@
+package ro.mihainiculai.rmi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How padded pixel rows travel between C03 and the zoom servers. An encoding is only used once the
+ * server has listed it in {@link ZoomImageInterface#supportedEncodings()}.
+ * <p>
+ * {@code DELTA_DEFLATE} replaces every byte of a row by its difference to the same channel of the pixel
+ * before it (the PNG "sub" filter), which turns smooth areas into runs of small values, and deflates the
+ * result at the fastest level. The encoded bytes start with the row stride and the decoded length, so
+ * every chunk decodes on its own.
+ */
+public enum PixelEncoding {
+    IDENTITY("identity"),
+    DELTA_DEFLATE("delta-deflate");
+
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int PREFIX_BYTES = 8;
+
+    private final String id;
+
+    PixelEncoding(String id) {
+        this.id = id;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public static PixelEncoding parse(String id) {
+        String wanted = id.trim().toLowerCase(Locale.ROOT);
+        return Arrays.stream(values())
+                .filter(encoding -> encoding.id.equals(wanted))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown pixel encoding: " + id));
+    }
+
+    /**
+     * Encodes the remaining bytes of {@code rows}, a whole number of {@code stride} byte rows.
+     */
+    public byte[] encode(ByteBuffer rows, int stride) {
+        int length = rows.remaining();
+        if (stride <= 0 || length % stride != 0) {
+            throw new IllegalArgumentException("Not a whole number of " + stride + " byte rows: " + length);
+        }
+        if (this == IDENTITY) {
+            byte[] copy = new byte[length];
+            rows.get(rows.position(), copy);
+            return copy;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] out = new byte[PREFIX_BYTES + length / 2 + 64];
+            ByteBuffer.wrap(out).putInt(stride).putInt(length);
+            int written = PREFIX_BYTES;
+
+            byte[] row = new byte[stride];
+            for (int offset = 0; offset < length; offset += stride) {
+                rows.get(rows.position() + offset, row);
+                // Backwards, so every byte is differenced against the unfiltered pixel before it
+                for (int i = stride - 1; i >= BYTES_PER_PIXEL; i--) {
+                    row[i] -= row[i - BYTES_PER_PIXEL];
+                }
+                deflater.setInput(row);
+                while (!deflater.needsInput()) {
+                    out = ensureSpace(out, written);
+                    written += deflater.deflate(out, written, out.length - written);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out = ensureSpace(out, written);
+                written += deflater.deflate(out, written, out.length - written);
+            }
+            return Arrays.copyOf(out, written);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Length of the rows {@code encoded} decodes to.
+     */
+    public int decodedLength(byte[] encoded) {
+        if (this == IDENTITY) {
+            return encoded.length;
+        }
+        if (encoded.length < PREFIX_BYTES) {
+            throw new IllegalArgumentException("Encoded rows are truncated");
+        }
+        return ByteBuffer.wrap(encoded).getInt(4);
+    }
+
+    /**
+     * Decodes {@code encoded} into the remaining bytes of {@code target}, which must be exactly
+     * {@link #decodedLength(byte[])} long. The position of {@code target} is left unchanged.
+     *
+     * @throws IllegalArgumentException if the encoded rows are corrupt or do not fit {@code target}
+     */
+    public void decode(byte[] encoded, ByteBuffer target) {
+        int length = decodedLength(encoded);
+        if (length != target.remaining()) {
+            throw new IllegalArgumentException(String.format(
+                    "Encoded rows hold %d bytes, expected %d", length, target.remaining()));
+        }
+        if (this == IDENTITY) {
+            target.put(target.position(), encoded);
+            return;
+        }
+
+        int stride = ByteBuffer.wrap(encoded).getInt(0);
+        if (stride <= 0 || length % stride != 0) {
+            throw new IllegalArgumentException("Invalid row stride " + stride + " for " + length + " bytes");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, PREFIX_BYTES, encoded.length - PREFIX_BYTES);
+            byte[] row = new byte[stride];
+            for (int offset = 0; offset < length; offset += stride) {
+                int filled = 0;
+                while (filled < stride) {
+                    int count = inflater.inflate(row, filled, stride - filled);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalArgumentException("Encoded rows are truncated");
+                    }
+                    filled += count;
+                }
+                for (int i = BYTES_PER_PIXEL; i < stride; i++) {
+                    row[i] += row[i - BYTES_PER_PIXEL];
+                }
+                target.put(target.position() + offset, row);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt encoded rows: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] ensureSpace(byte[] out, int written) {
+        return written < out.length ? out : Arrays.copyOf(out, out.length + (out.length >> 1));
+    }
+}
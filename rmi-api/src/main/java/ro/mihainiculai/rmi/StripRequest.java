@@ -0,0 +1,65 @@
+package ro.mihainiculai.rmi;
+
+import java.io.Serializable;
+
+/**
+ * Describes one strip of a zoom job in the coordinates of the whole image, so that every strip is
+ * resampled on the same sampling grid and the strips line up without seams. Rows are counted in BMP
+ * storage order (bottom-up).
+ *
+ * @param kernel             resample kernel name, or {@code null} for area
+ * @param sourceHeight       height of the whole source image
+ * @param sourceRowOffset    index of the first source row contained in the strip (including halo rows)
+ * @param targetWidth        width of the whole zoomed image
+ * @param targetHeight       height of the whole zoomed image
+ * @param targetRowStart     first output row to produce (inclusive)
+ * @param targetRowEnd       last output row to produce (exclusive)
+ * @param sourceWidth        width of the whole source image when the strip holds only some of its columns,
+ *                           0 when it holds whole rows and every output column is produced
+ * @param sourceColumnOffset index of the first source column contained in the strip (including halo columns)
+ * @param targetColumnStart  first output column to produce (inclusive)
+ * @param targetColumnEnd    last output column to produce (exclusive)
+ * @param jobId              job the strip belongs to, carried along for logs and metrics; may be {@code null}
+ */
+public record StripRequest(
+        String kernel,
+        int sourceHeight,
+        int sourceRowOffset,
+        int targetWidth,
+        int targetHeight,
+        int targetRowStart,
+        int targetRowEnd,
+        int sourceWidth,
+        int sourceColumnOffset,
+        int targetColumnStart,
+        int targetColumnEnd,
+        String jobId
+) implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public StripRequest(String kernel, int sourceHeight, int sourceRowOffset,
+                        int targetWidth, int targetHeight, int targetRowStart, int targetRowEnd) {
+        this(kernel, sourceHeight, sourceRowOffset, targetWidth, targetHeight, targetRowStart, targetRowEnd, null);
+    }
+
+    public StripRequest(String kernel, int sourceHeight, int sourceRowOffset,
+                        int targetWidth, int targetHeight, int targetRowStart, int targetRowEnd, String jobId) {
+        this(kernel, sourceHeight, sourceRowOffset, targetWidth, targetHeight, targetRowStart, targetRowEnd,
+                0, 0, 0, targetWidth, jobId);
+    }
+
+    public int targetRows() {
+        return targetRowEnd - targetRowStart;
+    }
+
+    /**
+     * Whether the strip covers only some columns, as described by the column fields.
+     */
+    public boolean hasColumnWindow() {
+        return sourceWidth > 0;
+    }
+
+    public int targetColumns() {
+        return hasColumnWindow() ? targetColumnEnd - targetColumnStart : targetWidth;
+    }
+}
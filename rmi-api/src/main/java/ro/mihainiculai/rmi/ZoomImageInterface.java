@@ -0,0 +1,67 @@
+package ro.mihainiculai.rmi;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface ZoomImageInterface extends Remote {
+    byte[] zoomImage(byte[] bmpData, double zoomLevel) throws RemoteException;
+
+    /**
+     * @param kernel resample kernel name (nearest, area, bilinear, bicubic, lanczos), or {@code null}
+     *               for area
+     */
+    byte[] zoomImage(byte[] bmpData, double zoomLevel, String kernel) throws RemoteException;
+
+    /**
+     * Zooms one strip of a larger image. {@code strip} holds the source rows starting at
+     * {@link StripRequest#sourceRowOffset()}, including enough halo rows for the kernel; the result
+     * holds exactly the requested output rows.
+     */
+    byte[] zoomStrip(BmpStrip strip, StripRequest request) throws RemoteException;
+
+    /**
+     * Like {@link #zoomStrip(BmpStrip, StripRequest)}, but returns only the padded output rows, encoded
+     * in the {@link PixelEncoding} with id {@code encoding}. The strip's own rows may be encoded too,
+     * see {@link BmpStrip#encoded}.
+     */
+    byte[] zoomStrip(BmpStrip strip, StripRequest request, String encoding) throws RemoteException;
+
+    /**
+     * Zooms one strip to several output sizes, decoding it only once. Every request describes the same
+     * strip (and so has the same {@link StripRequest#sourceRowOffset()}); result {@code i} holds the padded
+     * output rows of request {@code i}, encoded as in {@link #zoomStrip(BmpStrip, StripRequest, String)}.
+     */
+    byte[][] zoomStrips(BmpStrip strip, StripRequest[] requests, String encoding) throws RemoteException;
+
+    /**
+     * Starts a streamed strip for strips too large to send in one call. Source rows (padded, in storage
+     * order, starting at {@link StripRequest#sourceRowOffset()}) are sent with {@link #pushRows} and the
+     * zoomed rows are collected with {@link #pullRows} as soon as they are produced.
+     *
+     * @return the session id
+     */
+    long openStripSession(StripRequest request, int sourceWidth) throws RemoteException;
+
+    /**
+     * Like {@link #openStripSession(StripRequest, int)}, but every chunk pushed to and pulled from the
+     * session is encoded on its own in the {@link PixelEncoding} with id {@code encoding}.
+     */
+    long openStripSession(StripRequest request, int sourceWidth, String encoding) throws RemoteException;
+
+    void pushRows(long sessionId, byte[] rows) throws RemoteException;
+
+    /**
+     * @return up to {@code maxRows} padded output rows, or an empty array if none are ready yet
+     */
+    byte[] pullRows(long sessionId, int maxRows) throws RemoteException;
+
+    void closeStripSession(long sessionId) throws RemoteException;
+
+    /**
+     * Ids of the {@link PixelEncoding}s this server accepts and returns. Servers that predate this
+     * method only handle raw rows.
+     */
+    String[] supportedEncodings() throws RemoteException;
+
+    boolean ping() throws RemoteException;
+}
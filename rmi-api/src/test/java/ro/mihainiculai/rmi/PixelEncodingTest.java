@@ -0,0 +1,122 @@
+package ro.mihainiculai.rmi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PixelEncodingTest {
+    // 1 pixel pads 3 bytes to 4, 4 pixels need no padding, 317 pixels pad 951 bytes to 952
+    private static final int[] WIDTHS = {1, 4, 317};
+    private static final int HEIGHT = 13;
+
+    @ParameterizedTest
+    @EnumSource(PixelEncoding.class)
+    void decodeRestoresEncodedRows(PixelEncoding encoding) {
+        for (int width : WIDTHS) {
+            int stride = stride(width);
+            byte[] rows = syntheticRows(stride, HEIGHT, width);
+
+            byte[] encoded = encoding.encode(ByteBuffer.wrap(rows), stride);
+            assertEquals(rows.length, encoding.decodedLength(encoded));
+
+            // Decode into the middle of a larger buffer, as C03 does into the target image
+            ByteBuffer target = ByteBuffer.allocate(rows.length + 10).position(5).limit(5 + rows.length);
+            encoding.decode(encoded, target);
+            assertEquals(5, target.position());
+            assertArrayEquals(rows, Arrays.copyOfRange(target.array(), 5, 5 + rows.length),
+                    encoding + " at width " + width);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(PixelEncoding.class)
+    void encodeUsesOnlyRemainingBytes(PixelEncoding encoding) {
+        int stride = stride(317);
+        byte[] rows = syntheticRows(stride, HEIGHT, 317);
+        ByteBuffer window = ByteBuffer.wrap(rows, 2 * stride, 5 * stride);
+
+        byte[] encoded = encoding.encode(window, stride);
+        ByteBuffer target = ByteBuffer.allocate(5 * stride);
+        encoding.decode(encoded, target);
+        assertArrayEquals(Arrays.copyOfRange(rows, 2 * stride, 7 * stride), target.array());
+        assertEquals(2 * stride, window.position());
+    }
+
+    @ParameterizedTest
+    @EnumSource(PixelEncoding.class)
+    void rejectsPartialRows(PixelEncoding encoding) {
+        assertThrows(IllegalArgumentException.class, () -> encoding.encode(ByteBuffer.allocate(10), 4));
+    }
+
+    @ParameterizedTest
+    @EnumSource(PixelEncoding.class)
+    void rejectsTargetOfWrongSize(PixelEncoding encoding) {
+        byte[] encoded = encoding.encode(ByteBuffer.wrap(syntheticRows(8, 3, 2)), 8);
+        assertThrows(IllegalArgumentException.class, () -> encoding.decode(encoded, ByteBuffer.allocate(23)));
+    }
+
+    @Test
+    void rejectsTruncatedRows() {
+        int stride = stride(317);
+        byte[] rows = syntheticRows(stride, HEIGHT, 317);
+        byte[] encoded = PixelEncoding.DELTA_DEFLATE.encode(ByteBuffer.wrap(rows), stride);
+
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length / 2);
+        assertThrows(IllegalArgumentException.class,
+                () -> PixelEncoding.DELTA_DEFLATE.decode(truncated, ByteBuffer.allocate(rows.length)));
+        byte[] noPrefix = Arrays.copyOf(encoded, 5);
+        assertThrows(IllegalArgumentException.class, () -> PixelEncoding.DELTA_DEFLATE.decodedLength(noPrefix));
+    }
+
+    @Test
+    void rejectsCorruptRows() {
+        int stride = stride(317);
+        byte[] rows = syntheticRows(stride, HEIGHT, 317);
+        byte[] encoded = PixelEncoding.DELTA_DEFLATE.encode(ByteBuffer.wrap(rows), stride);
+
+        byte[] badStride = encoded.clone();
+        ByteBuffer.wrap(badStride).putInt(0, stride + 1);
+        assertThrows(IllegalArgumentException.class,
+                () -> PixelEncoding.DELTA_DEFLATE.decode(badStride, ByteBuffer.allocate(rows.length)));
+
+        // 0xFF is not a valid deflate block header
+        byte[] badStream = encoded.clone();
+        Arrays.fill(badStream, 8, badStream.length, (byte) 0xFF);
+        assertThrows(IllegalArgumentException.class,
+                () -> PixelEncoding.DELTA_DEFLATE.decode(badStream, ByteBuffer.allocate(rows.length)));
+    }
+
+    @Test
+    void parsesIdsOnly() {
+        assertEquals(PixelEncoding.DELTA_DEFLATE, PixelEncoding.parse(" Delta-Deflate "));
+        assertEquals(PixelEncoding.IDENTITY, PixelEncoding.parse("identity"));
+        assertThrows(IllegalArgumentException.class, () -> PixelEncoding.parse("DELTA_DEFLATE"));
+        assertThrows(IllegalArgumentException.class, () -> PixelEncoding.parse("zstd"));
+    }
+
+    private static int stride(int width) {
+        return (width * 3 + 3) & ~3;
+    }
+
+    /**
+     * Smooth gradients with some noise; padding bytes are left zero as in a BMP.
+     */
+    private static byte[] syntheticRows(int stride, int height, int width) {
+        Random random = new Random(width);
+        byte[] rows = new byte[stride * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width * 3; x++) {
+                rows[y * stride + x] = (byte) (x + y * 7 + random.nextInt(4));
+            }
+        }
+        return rows;
+    }
+}